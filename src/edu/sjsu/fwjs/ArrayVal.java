@@ -0,0 +1,241 @@
+package edu.sjsu.fwjs;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Arrays.
+ *
+ * The elements are stored according to what has been stored so far:
+ * an array of ints keeps them in an int[], and an array of booleans in a
+ * boolean[], so neither holds a Value per element.  Storing any other
+ * value moves the elements to a Value[] for good.  An empty array takes
+ * the kind of the first element stored in it.
+ *
+ * Reading past the end gives null, like undefined in JS.  Storing at the
+ * index just past the end appends, and the storage grows by doubling.
+ */
+class ArrayVal implements Value {
+    // Kinds of element storage
+    static final int INTS = 0;
+    static final int BOOLEANS = 1;
+    static final int VALUES = 2;
+
+    // The arrays that the running thread is printing.
+    private static final ThreadLocal<Set<ArrayVal>> PRINTING = new ThreadLocal<Set<ArrayVal>>() {
+        @Override
+        protected Set<ArrayVal> initialValue() {
+            return Collections.newSetFromMap(new IdentityHashMap<ArrayVal, Boolean>());
+        }
+    };
+
+    private int[] ints;
+    private boolean[] bools;
+    private Value[] values;
+    private int length;
+
+    public ArrayVal(List<Value> elements) {
+        this.length = elements.size();
+        int kind = length == 0 ? INTS : kindOf(elements.get(0));
+        for (Value v : elements) {
+            if (kindOf(v) != kind) {
+                kind = VALUES;
+            }
+        }
+        allocate(kind, length);
+        for (int i = 0; i < length; i++) {
+            store(i, elements.get(i));
+        }
+    }
+
+    /**
+     * Evaluates an index, which must be an int.  A bigger number must not
+     * escape as an UnexpectedResultException, which the caller of an
+     * element read would take for the element.
+     */
+    static int evaluateIndex(Expression index, Environment env) {
+        try {
+            return index.evaluateInt(env);
+        } catch (UnexpectedResultException e) {
+            throw notAnIndex(e.getResult());
+        }
+    }
+
+    /**
+     * Gets an index that has already been evaluated, as evaluateIndex does.
+     */
+    static int toIndex(Value index) {
+        try {
+            return Numbers.expectInt(index);
+        } catch (UnexpectedResultException e) {
+            throw notAnIndex(e.getResult());
+        }
+    }
+
+    private static RuntimeException notAnIndex(Value index) {
+        return new RuntimeException("Array index " + index + " is not an int");
+    }
+
+    public int length() {
+        return length;
+    }
+
+    int getKind() {
+        return ints != null ? INTS : bools != null ? BOOLEANS : VALUES;
+    }
+
+    /**
+     * Gets an element, or null if the index is out of bounds.
+     */
+    public Value get(int i) {
+        if (i < 0 || i >= length) {
+            return NullVal.NULL;
+        }
+        if (ints != null) {
+            return IntVal.of(ints[i]);
+        }
+        if (bools != null) {
+            return BoolVal.of(bools[i]);
+        }
+        return values[i];
+    }
+
+    /**
+     * Gets an element that must be a number, without boxing it.
+     */
+    int getInt(int i) {
+        if (ints != null && i >= 0 && i < length) {
+            return ints[i];
+        }
+        return Numbers.expectInt(get(i));
+    }
+
+    /**
+     * Gets an element that must be a boolean, without boxing it.
+     */
+    boolean getBoolean(int i) {
+        if (bools != null && i >= 0 && i < length) {
+            return bools[i];
+        }
+        return ((BoolVal) get(i)).toBoolean();
+    }
+
+    /**
+     * Sets an element.  The index may be at most the length of the array,
+     * in which case the element is appended.
+     */
+    public void set(int i, Value v) {
+        if (i < 0 || i > length) {
+            throw new RuntimeException("Array index " + i + " out of bounds for length " + length);
+        }
+        if (i == length) {
+            if (length == 0) {
+                allocate(kindOf(v), 4);
+            }
+            else if (length == capacity()) {
+                grow();
+            }
+            length++;
+        }
+        store(i, v);
+    }
+
+    /**
+     * An array that contains itself, directly or not, prints as [...]
+     * where it comes up again.
+     */
+    @Override
+    public String toString() {
+        Set<ArrayVal> printing = PRINTING.get();
+        if (!printing.add(this)) {
+            return "[...]";
+        }
+        try {
+            StringBuilder sb = new StringBuilder("[");
+            for (int i = 0; i < length; i++) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                sb.append(get(i));
+            }
+            return sb.append("]").toString();
+        } finally {
+            printing.remove(this);
+        }
+    }
+
+    private static int kindOf(Value v) {
+        if (v instanceof IntVal) {
+            return INTS;
+        }
+        if (v instanceof BoolVal) {
+            return BOOLEANS;
+        }
+        return VALUES;
+    }
+
+    private void allocate(int kind, int capacity) {
+        ints = null;
+        bools = null;
+        values = null;
+        switch (kind) {
+            case INTS:
+                ints = new int[capacity];
+                break;
+            case BOOLEANS:
+                bools = new boolean[capacity];
+                break;
+            default:
+                values = new Value[capacity];
+        }
+    }
+
+    private void store(int i, Value v) {
+        if (ints != null) {
+            if (v instanceof IntVal) {
+                ints[i] = ((IntVal) v).toInt();
+                return;
+            }
+            toValues();
+        }
+        else if (bools != null) {
+            if (v instanceof BoolVal) {
+                bools[i] = ((BoolVal) v).toBoolean();
+                return;
+            }
+            toValues();
+        }
+        values[i] = v;
+    }
+
+    private int capacity() {
+        return ints != null ? ints.length : bools != null ? bools.length : values.length;
+    }
+
+    private void grow() {
+        int capacity = capacity() * 2;
+        if (ints != null) {
+            ints = Arrays.copyOf(ints, capacity);
+        }
+        else if (bools != null) {
+            bools = Arrays.copyOf(bools, capacity);
+        }
+        else values = Arrays.copyOf(values, capacity);
+    }
+
+    /**
+     * Moves the elements to a Value[], once a value of another kind is stored.
+     */
+    private void toValues() {
+        Value[] boxed = new Value[capacity()];
+        for (int i = 0; i < length; i++) {
+            boxed[i] = get(i);
+        }
+        ints = null;
+        bools = null;
+        values = boxed;
+    }
+}
@@ -0,0 +1,364 @@
+package edu.sjsu.fwjs;
+
+/**
+ * The specializations a BinOpExpr evaluates with.
+ *
+ * A BinOpExpr starts out uninitialized and picks a node from the types
+ * its operands produce: one class per operator while both operands are
+ * ints, a node for doubles mixed with ints, and a generic node for
+ * anything else.  A node that sees an operand of a type it does not
+ * handle asks the BinOpExpr to replace it with a more general one, so
+ * each operation settles on the simplest node for the types it actually
+ * sees.  Each int node has its own code with no switch on the operator,
+ * so the JIT sees few receiver types at each of its calls.
+ */
+final class BinOpNodes {
+    private BinOpNodes() {
+    }
+
+    /**
+     * The node for an operator applied to two ints.
+     */
+    static Node ints(BinOpExpr parent, Op op, Expression e1, Expression e2) {
+        switch (op) {
+            case ADD:
+                return new IntAdd(parent, e1, e2);
+            case SUBTRACT:
+                return new IntSubtract(parent, e1, e2);
+            case MULTIPLY:
+                return new IntMultiply(parent, e1, e2);
+            case DIVIDE:
+                return new IntDivide(parent, e1, e2);
+            case MOD:
+                return new IntMod(parent, e1, e2);
+            case GT:
+                return new IntGreater(parent, e1, e2);
+            case GE:
+                return new IntGreaterOrEqual(parent, e1, e2);
+            case LT:
+                return new IntLess(parent, e1, e2);
+            case LE:
+                return new IntLessOrEqual(parent, e1, e2);
+            default:
+                return new IntEqual(parent, e1, e2);
+        }
+    }
+
+    /**
+     * A way of evaluating a BinOpExpr, following the Expression protocol.
+     */
+    abstract static class Node {
+        final BinOpExpr parent;
+        final Expression e1;
+        final Expression e2;
+
+        Node(BinOpExpr parent, Expression e1, Expression e2) {
+            this.parent = parent;
+            this.e1 = e1;
+            this.e2 = e2;
+        }
+
+        abstract Value evaluate(Environment env);
+
+        int evaluateInt(Environment env) {
+            return Numbers.expectInt(evaluate(env));
+        }
+
+        double evaluateDouble(Environment env) {
+            return Numbers.expectDouble(evaluate(env));
+        }
+
+        boolean evaluateBoolean(Environment env) {
+            return ((BoolVal) evaluate(env)).toBoolean();
+        }
+    }
+
+    /**
+     * Evaluates the operands once to see their types.
+     */
+    static final class Uninitialized extends Node {
+        Uninitialized(BinOpExpr parent, Expression e1, Expression e2) {
+            super(parent, e1, e2);
+        }
+
+        Value evaluate(Environment env) {
+            Value v1 = e1.evaluate(env);
+            return parent.rewrite(v1, e2.evaluate(env));
+        }
+    }
+
+    /**
+     * Applies the operator to values of any type.
+     */
+    static final class Generic extends Node {
+        Generic(BinOpExpr parent, Expression e1, Expression e2) {
+            super(parent, e1, e2);
+        }
+
+        Value evaluate(Environment env) {
+            Value v1 = e1.evaluate(env);
+            return parent.operate(v1, e2.evaluate(env));
+        }
+    }
+
+    /**
+     * Used once either operand has produced a double.  The other operand
+     * may still be an int, which is converted.
+     */
+    static final class Doubles extends Node {
+        private final boolean int1;
+        private final boolean int2;
+        private final Op op;
+        private final boolean comparison;
+
+        Doubles(BinOpExpr parent, Op op, Expression e1, Expression e2, boolean int1, boolean int2) {
+            super(parent, e1, e2);
+            this.op = op;
+            this.int1 = int1;
+            this.int2 = int2;
+            this.comparison = parent.isComparison();
+        }
+
+        Value evaluate(Environment env) {
+            if (comparison) {
+                return BoolVal.of(evaluateBoolean(env));
+            }
+            try {
+                return new DoubleVal(evaluateDouble(env));
+            } catch (UnexpectedResultException e) {
+                return e.getResult();
+            }
+        }
+
+        double evaluateDouble(Environment env) {
+            if (comparison) {
+                return super.evaluateDouble(env);
+            }
+            double val1;
+            try {
+                val1 = int1 ? e1.evaluateInt(env) : e1.evaluateDouble(env);
+            } catch (UnexpectedResultException e) {
+                return Numbers.expectDouble(parent.rewrite(e.getResult(), e2.evaluate(env)));
+            }
+            double val2;
+            try {
+                val2 = int2 ? e2.evaluateInt(env) : e2.evaluateDouble(env);
+            } catch (UnexpectedResultException e) {
+                return Numbers.expectDouble(parent.rewrite(operandValue(int1, val1), e.getResult()));
+            }
+            return Numbers.arithmetic(op, val1, val2);
+        }
+
+        boolean evaluateBoolean(Environment env) {
+            if (!comparison) {
+                return super.evaluateBoolean(env);
+            }
+            double val1;
+            try {
+                val1 = int1 ? e1.evaluateInt(env) : e1.evaluateDouble(env);
+            } catch (UnexpectedResultException e) {
+                return ((BoolVal) parent.rewrite(e.getResult(), e2.evaluate(env))).toBoolean();
+            }
+            double val2;
+            try {
+                val2 = int2 ? e2.evaluateInt(env) : e2.evaluateDouble(env);
+            } catch (UnexpectedResultException e) {
+                return ((BoolVal) parent.rewrite(operandValue(int1, val1), e.getResult())).toBoolean();
+            }
+            return Numbers.test(op, val1, val2);
+        }
+
+        private static Value operandValue(boolean isInt, double val) {
+            return isInt ? IntVal.of((int) val) : new DoubleVal(val);
+        }
+    }
+
+    /**
+     * Int arithmetic.  A result that does not fit in an int is thrown in
+     * an UnexpectedResultException by evaluateInt, which evaluate returns.
+     * Each operator only gives op.
+     */
+    abstract static class IntArithmetic extends Node {
+        IntArithmetic(BinOpExpr parent, Expression e1, Expression e2) {
+            super(parent, e1, e2);
+        }
+
+        /**
+         * Applies the operator, throwing a result that is not an int in
+         * an UnexpectedResultException.
+         */
+        abstract int op(int val1, int val2);
+
+        final Value evaluate(Environment env) {
+            try {
+                return IntVal.of(evaluateInt(env));
+            } catch (UnexpectedResultException e) {
+                return e.getResult();
+            }
+        }
+
+        final int evaluateInt(Environment env) {
+            int val1;
+            try {
+                val1 = e1.evaluateInt(env);
+            } catch (UnexpectedResultException e) {
+                return Numbers.expectInt(parent.rewrite(e.getResult(), e2.evaluate(env)));
+            }
+            int val2;
+            try {
+                val2 = e2.evaluateInt(env);
+            } catch (UnexpectedResultException e) {
+                return Numbers.expectInt(parent.rewrite(IntVal.of(val1), e.getResult()));
+            }
+            return op(val1, val2);
+        }
+    }
+
+    /**
+     * Int comparisons.  Each operator only gives test.
+     */
+    abstract static class IntComparison extends Node {
+        IntComparison(BinOpExpr parent, Expression e1, Expression e2) {
+            super(parent, e1, e2);
+        }
+
+        abstract boolean test(int val1, int val2);
+
+        final Value evaluate(Environment env) {
+            return BoolVal.of(evaluateBoolean(env));
+        }
+
+        final boolean evaluateBoolean(Environment env) {
+            int val1;
+            try {
+                val1 = e1.evaluateInt(env);
+            } catch (UnexpectedResultException e) {
+                return ((BoolVal) parent.rewrite(e.getResult(), e2.evaluate(env))).toBoolean();
+            }
+            int val2;
+            try {
+                val2 = e2.evaluateInt(env);
+            } catch (UnexpectedResultException e) {
+                return ((BoolVal) parent.rewrite(IntVal.of(val1), e.getResult())).toBoolean();
+            }
+            return test(val1, val2);
+        }
+    }
+
+    static final class IntAdd extends IntArithmetic {
+        IntAdd(BinOpExpr parent, Expression e1, Expression e2) {
+            super(parent, e1, e2);
+        }
+
+        int op(int val1, int val2) {
+            int result = val1 + val2;
+            // The sum overflowed if its sign differs from both operands'.
+            if (((val1 ^ result) & (val2 ^ result)) < 0) {
+                throw new UnexpectedResultException(Numbers.of((long) val1 + val2));
+            }
+            return result;
+        }
+    }
+
+    static final class IntSubtract extends IntArithmetic {
+        IntSubtract(BinOpExpr parent, Expression e1, Expression e2) {
+            super(parent, e1, e2);
+        }
+
+        int op(int val1, int val2) {
+            int result = val1 - val2;
+            if (((val1 ^ val2) & (val1 ^ result)) < 0) {
+                throw new UnexpectedResultException(Numbers.of((long) val1 - val2));
+            }
+            return result;
+        }
+    }
+
+    static final class IntMultiply extends IntArithmetic {
+        IntMultiply(BinOpExpr parent, Expression e1, Expression e2) {
+            super(parent, e1, e2);
+        }
+
+        int op(int val1, int val2) {
+            long result = (long) val1 * val2;
+            if ((int) result != result) {
+                throw new UnexpectedResultException(Numbers.of(result));
+            }
+            return (int) result;
+        }
+    }
+
+    static final class IntDivide extends IntArithmetic {
+        IntDivide(BinOpExpr parent, Expression e1, Expression e2) {
+            super(parent, e1, e2);
+        }
+
+        int op(int val1, int val2) {
+            // The one quotient of two ints that is not an int
+            if (val1 == Integer.MIN_VALUE && val2 == -1) {
+                throw new UnexpectedResultException(Numbers.of(-(long) val1));
+            }
+            return val1 / val2;
+        }
+    }
+
+    static final class IntMod extends IntArithmetic {
+        IntMod(BinOpExpr parent, Expression e1, Expression e2) {
+            super(parent, e1, e2);
+        }
+
+        int op(int val1, int val2) {
+            return val1 % val2;
+        }
+    }
+
+    static final class IntGreater extends IntComparison {
+        IntGreater(BinOpExpr parent, Expression e1, Expression e2) {
+            super(parent, e1, e2);
+        }
+
+        boolean test(int val1, int val2) {
+            return val1 > val2;
+        }
+    }
+
+    static final class IntGreaterOrEqual extends IntComparison {
+        IntGreaterOrEqual(BinOpExpr parent, Expression e1, Expression e2) {
+            super(parent, e1, e2);
+        }
+
+        boolean test(int val1, int val2) {
+            return val1 >= val2;
+        }
+    }
+
+    static final class IntLess extends IntComparison {
+        IntLess(BinOpExpr parent, Expression e1, Expression e2) {
+            super(parent, e1, e2);
+        }
+
+        boolean test(int val1, int val2) {
+            return val1 < val2;
+        }
+    }
+
+    static final class IntLessOrEqual extends IntComparison {
+        IntLessOrEqual(BinOpExpr parent, Expression e1, Expression e2) {
+            super(parent, e1, e2);
+        }
+
+        boolean test(int val1, int val2) {
+            return val1 <= val2;
+        }
+    }
+
+    static final class IntEqual extends IntComparison {
+        IntEqual(BinOpExpr parent, Expression e1, Expression e2) {
+            super(parent, e1, e2);
+        }
+
+        boolean test(int val1, int val2) {
+            return val1 == val2;
+        }
+    }
+}
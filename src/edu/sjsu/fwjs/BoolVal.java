@@ -0,0 +1,29 @@
+package edu.sjsu.fwjs;
+
+/**
+ * Boolean values.
+ */
+class BoolVal implements Value {
+    static final BoolVal TRUE = new BoolVal(true);
+    static final BoolVal FALSE = new BoolVal(false);
+    private boolean boolVal;
+    public BoolVal(boolean b) { this.boolVal = b; }
+    /**
+     * Gets the shared value for a boolean, without allocating.
+     */
+    public static BoolVal of(boolean b) { return b ? TRUE : FALSE; }
+    public boolean toBoolean() { return this.boolVal; }
+    @Override
+    public boolean equals(Object that) {
+        if (!(that instanceof BoolVal)) return false;
+        return this.boolVal == ((BoolVal) that).boolVal;
+    }
+    @Override
+    public int hashCode() {
+        return Boolean.hashCode(this.boolVal);
+    }
+    @Override
+    public String toString() {
+        return "" + this.boolVal;
+    }
+}
@@ -0,0 +1,30 @@
+package edu.sjsu.fwjs;
+
+import java.util.List;
+
+/**
+ * Functions implemented in Java.  See Builtins.
+ */
+abstract class BuiltinVal implements FunctionVal {
+    private String name;
+    private int arity;
+    /**
+     * An arity of -1 accepts any number of arguments.
+     */
+    public BuiltinVal(String name, int arity) {
+        this.name = name;
+        this.arity = arity;
+    }
+    public String getName() { return this.name; }
+    public Value apply(List<Value> argVals, Environment callerEnv) {
+        if (arity >= 0 && argVals.size() != arity) {
+            throw new RuntimeException(name + " expects " + arity + " arguments");
+        }
+        return call(argVals, callerEnv);
+    }
+    protected abstract Value call(List<Value> args, Environment callerEnv);
+    @Override
+    public String toString() {
+        return "function " + name + "() {[builtin]};";
+    }
+}
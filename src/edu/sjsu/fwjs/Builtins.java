@@ -0,0 +1,195 @@
+package edu.sjsu.fwjs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Functions that every program can call, defined as globals.
+ *
+ * These work on the persistent collections, VectorVal and MapVal:
+ *   vector(x, ...)            a vector of the arguments
+ *   hashMap(k, v, ...)        a map of the pairs of arguments
+ *   append(vec, x)            the vector with x added at the end
+ *   update(coll, i, x)        the collection with index or key i set to x
+ *   lookup(coll, i)           the element at index or key i, or null
+ *   has(map, k)               whether the map has the key
+ *   remove(map, k)            the map without the key
+ *   size(coll)                the number of elements or entries
+ *   each(coll, f)             calls f(x) for each element of a vector,
+ *                             or f(k, v) for each entry of a map
+ * None of them changes its arguments.
+ *
+ * Dictionaries, DictVals, are changed in place instead:
+ *   dict(k, v, ...)           a new dictionary of the pairs of arguments
+ *   get(dict, k)              the value for the key, or null
+ *   put(dict, k, v)           sets the key to v and returns the dictionary
+ *   delete(dict, k)           removes the key and returns whether it was there
+ * has, size and each work on dictionaries as they do on maps.
+ */
+public final class Builtins {
+    private Builtins() {
+    }
+
+    /**
+     * Defines the builtins in a global environment.
+     */
+    public static void install(Environment env) {
+        define(env, new BuiltinVal("vector", -1) {
+            protected Value call(List<Value> args, Environment callerEnv) {
+                VectorVal vec = VectorVal.EMPTY;
+                for (Value v : args) {
+                    vec = vec.append(v);
+                }
+                return vec;
+            }
+        });
+        define(env, new BuiltinVal("hashMap", -1) {
+            protected Value call(List<Value> args, Environment callerEnv) {
+                if (args.size() % 2 != 0) {
+                    throw new RuntimeException("hashMap expects pairs of keys and values");
+                }
+                MapVal map = MapVal.EMPTY;
+                for (int i = 0; i < args.size(); i += 2) {
+                    map = map.put(args.get(i), args.get(i + 1));
+                }
+                return map;
+            }
+        });
+        define(env, new BuiltinVal("append", 2) {
+            protected Value call(List<Value> args, Environment callerEnv) {
+                return vector(args.get(0)).append(args.get(1));
+            }
+        });
+        define(env, new BuiltinVal("update", 3) {
+            protected Value call(List<Value> args, Environment callerEnv) {
+                Value coll = args.get(0);
+                if (coll instanceof MapVal) {
+                    return ((MapVal) coll).put(args.get(1), args.get(2));
+                }
+                return vector(coll).update(index(args.get(1)), args.get(2));
+            }
+        });
+        define(env, new BuiltinVal("lookup", 2) {
+            protected Value call(List<Value> args, Environment callerEnv) {
+                Value coll = args.get(0);
+                if (coll instanceof MapVal) {
+                    return ((MapVal) coll).get(args.get(1));
+                }
+                return vector(coll).get(index(args.get(1)));
+            }
+        });
+        define(env, new BuiltinVal("has", 2) {
+            protected Value call(List<Value> args, Environment callerEnv) {
+                Value coll = args.get(0);
+                if (coll instanceof DictVal) {
+                    return BoolVal.of(((DictVal) coll).has(args.get(1)));
+                }
+                return BoolVal.of(map(coll).has(args.get(1)));
+            }
+        });
+        define(env, new BuiltinVal("remove", 2) {
+            protected Value call(List<Value> args, Environment callerEnv) {
+                return map(args.get(0)).remove(args.get(1));
+            }
+        });
+        define(env, new BuiltinVal("size", 1) {
+            protected Value call(List<Value> args, Environment callerEnv) {
+                Value coll = args.get(0);
+                if (coll instanceof MapVal) {
+                    return IntVal.of(((MapVal) coll).size());
+                }
+                if (coll instanceof DictVal) {
+                    return IntVal.of(((DictVal) coll).size());
+                }
+                return IntVal.of(vector(coll).length());
+            }
+        });
+        define(env, new BuiltinVal("each", 2) {
+            protected Value call(List<Value> args, Environment callerEnv) {
+                Value coll = args.get(0);
+                FunctionVal f = (FunctionVal) args.get(1);
+                if (coll instanceof MapVal || coll instanceof DictVal) {
+                    List<Value> keys = new ArrayList<Value>();
+                    List<Value> values = new ArrayList<Value>();
+                    if (coll instanceof MapVal) {
+                        ((MapVal) coll).collect(keys, values);
+                    }
+                    else ((DictVal) coll).collect(keys, values);
+                    for (int i = 0; i < keys.size(); i++) {
+                        f.apply(Arrays.asList(keys.get(i), values.get(i)), callerEnv);
+                    }
+                }
+                else {
+                    VectorVal vec = vector(coll);
+                    for (int i = 0; i < vec.length(); i++) {
+                        f.apply(Arrays.asList(vec.get(i)), callerEnv);
+                    }
+                }
+                return NullVal.NULL;
+            }
+        });
+        define(env, new BuiltinVal("dict", -1) {
+            protected Value call(List<Value> args, Environment callerEnv) {
+                if (args.size() % 2 != 0) {
+                    throw new RuntimeException("dict expects pairs of keys and values");
+                }
+                DictVal dict = new DictVal();
+                for (int i = 0; i < args.size(); i += 2) {
+                    dict.put(args.get(i), args.get(i + 1));
+                }
+                return dict;
+            }
+        });
+        define(env, new BuiltinVal("get", 2) {
+            protected Value call(List<Value> args, Environment callerEnv) {
+                Value v = dict(args.get(0)).get(args.get(1));
+                return v == null ? NullVal.NULL : v;
+            }
+        });
+        define(env, new BuiltinVal("put", 3) {
+            protected Value call(List<Value> args, Environment callerEnv) {
+                DictVal dict = dict(args.get(0));
+                dict.put(args.get(1), args.get(2));
+                return dict;
+            }
+        });
+        define(env, new BuiltinVal("delete", 2) {
+            protected Value call(List<Value> args, Environment callerEnv) {
+                return BoolVal.of(dict(args.get(0)).delete(args.get(1)));
+            }
+        });
+    }
+
+    private static void define(Environment env, BuiltinVal f) {
+        env.createVar(f.getName(), f);
+    }
+
+    private static VectorVal vector(Value v) {
+        if (!(v instanceof VectorVal)) {
+            throw new RuntimeException("Expected a vector, not " + v);
+        }
+        return (VectorVal) v;
+    }
+
+    private static MapVal map(Value v) {
+        if (!(v instanceof MapVal)) {
+            throw new RuntimeException("Expected a map, not " + v);
+        }
+        return (MapVal) v;
+    }
+
+    private static DictVal dict(Value v) {
+        if (!(v instanceof DictVal)) {
+            throw new RuntimeException("Expected a dictionary, not " + v);
+        }
+        return (DictVal) v;
+    }
+
+    private static int index(Value v) {
+        if (!(v instanceof IntVal)) {
+            throw new RuntimeException("Vector index " + v + " is not an int");
+        }
+        return ((IntVal) v).toInt();
+    }
+}
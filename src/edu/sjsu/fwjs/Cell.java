@@ -0,0 +1,81 @@
+package edu.sjsu.fwjs;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * A mutable box holding one variable.
+ * Cells let closures share a variable with the frame that declared it.
+ * A cell holding null has not been declared yet.
+ */
+class Cell {
+    // Plain for cells of a single thread.  SharedCell reaches the same
+    // field through a VarHandle with stronger access modes.
+    protected Value value;
+
+    Cell() {
+    }
+
+    Cell(Value value) {
+        this.value = value;
+    }
+
+    Value get() {
+        return value;
+    }
+
+    void set(Value v) {
+        this.value = v;
+    }
+
+    /**
+     * Declares the variable if it has not been declared yet.
+     *
+     * @return false if the variable was already declared.
+     */
+    boolean declare(Value v) {
+        if (value != null) {
+            return false;
+        }
+        value = v;
+        return true;
+    }
+}
+
+/**
+ * A cell of a global environment that is shared between threads.
+ * Values are published with release/acquire semantics, and declaring
+ * the variable is atomic.
+ */
+class SharedCell extends Cell {
+    private static final VarHandle VALUE;
+
+    static {
+        try {
+            VALUE = MethodHandles.lookup().findVarHandle(Cell.class, "value", Value.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    SharedCell(Value value) {
+        // A plain write is enough: the cell reaches other threads through
+        // the ConcurrentHashMap of globals, which publishes it safely.
+        super(value);
+    }
+
+    @Override
+    Value get() {
+        return (Value) VALUE.getAcquire(this);
+    }
+
+    @Override
+    void set(Value v) {
+        VALUE.setRelease(this, v);
+    }
+
+    @Override
+    boolean declare(Value v) {
+        return VALUE.compareAndSet(this, null, v);
+    }
+}
@@ -0,0 +1,20 @@
+package edu.sjsu.fwjs;
+
+/**
+ * Expressions that evaluate each of their operands once, in order, and
+ * then compute their value from the values of the operands alone.
+ *
+ * StackEvaluator evaluates the operands of these expressions itself,
+ * instead of calling evaluate, so that a call among them does not take
+ * Java stack.
+ */
+interface CompoundExpr extends Expression {
+    Expression[] getOperands();
+
+    /**
+     * Computes the value of the expression from the values of its operands.
+     * It shares its code with evaluate, which only differs in how it gets
+     * the operands.
+     */
+    Value combine(Value[] operands, Environment env);
+}
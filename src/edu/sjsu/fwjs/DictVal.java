@@ -0,0 +1,188 @@
+package edu.sjsu.fwjs;
+
+import java.util.List;
+
+/**
+ * Dictionaries: mutable maps from any value to any value.
+ *
+ * Unlike MapVal, a dictionary is changed in place, which makes it the
+ * faster choice for tables that only one part of a program updates, such
+ * as memoization tables.  Keys are compared with equals, so equal numbers
+ * or strings find the same entry, while closures, arrays and objects
+ * only match themselves.
+ *
+ * The entries are kept in parallel arrays with open addressing and linear
+ * probing, so no entry objects are allocated.  Each key's hash is kept
+ * next to it, so probing compares hashes before calling equals and growing
+ * the table does not hash any key again.  Deleting moves the entries after
+ * the hole back into it, so lookups never have to skip deleted entries.
+ */
+class DictVal implements Value {
+    private static final int MIN_CAPACITY = 8;
+
+    private Value[] keys;
+    private Value[] values;
+    private int[] hashes;
+    private int size;
+    private int shift;
+
+    public DictVal() {
+        allocate(MIN_CAPACITY);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the value for the key, or null if there is none.
+     */
+    public Value get(Value key) {
+        int i = indexOf(key);
+        return i < 0 ? null : values[i];
+    }
+
+    public boolean has(Value key) {
+        return indexOf(key) >= 0;
+    }
+
+    /**
+     * Associates the value with the key.
+     *
+     * @return the previous value for the key, or null if there was none.
+     */
+    public Value put(Value key, Value value) {
+        int h = hash(key);
+        int mask = keys.length - 1;
+        int i = bucket(h);
+        while (keys[i] != null) {
+            if (hashes[i] == h && key.equals(keys[i])) {
+                Value old = values[i];
+                values[i] = value;
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        hashes[i] = h;
+        // Keep the table at most half full so probe sequences stay short.
+        if (++size * 2 > keys.length) {
+            rehash(keys.length * 2);
+        }
+        return null;
+    }
+
+    /**
+     * Removes the key and its value.
+     *
+     * @return whether the key was present.
+     */
+    public boolean delete(Value key) {
+        int i = indexOf(key);
+        if (i < 0) {
+            return false;
+        }
+        int mask = keys.length - 1;
+        // Move back each following entry of the same run that would no
+        // longer be found past the hole.
+        for (int j = (i + 1) & mask; keys[j] != null; j = (j + 1) & mask) {
+            int home = bucket(hashes[j]);
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                hashes[i] = hashes[j];
+                i = j;
+            }
+        }
+        keys[i] = null;
+        values[i] = null;
+        size--;
+        return true;
+    }
+
+    /**
+     * Adds every key and its value to the lists, in no particular order.
+     */
+    void collect(List<Value> keys, List<Value> values) {
+        for (int i = 0; i < this.keys.length; i++) {
+            if (this.keys[i] != null) {
+                keys.add(this.keys[i]);
+                values.add(this.values[i]);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("dict(");
+        String sep = "";
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null) {
+                sb.append(sep).append(keys[i]).append(", ").append(values[i]);
+                sep = ", ";
+            }
+        }
+        return sb.append(")").toString();
+    }
+
+    private int indexOf(Value key) {
+        int h = hash(key);
+        int mask = keys.length - 1;
+        for (int i = bucket(h); ; i = (i + 1) & mask) {
+            Value k = keys[i];
+            if (k == null) {
+                return -1;
+            }
+            if (hashes[i] == h && key.equals(k)) {
+                return i;
+            }
+        }
+    }
+
+    /**
+     * Mixes the high bits of the hash into the low ones, since number
+     * hashes such as those of doubles differ mostly in their high bits.
+     */
+    private static int hash(Value key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Fibonacci hashing spreads consecutive hashes over the whole table.
+     */
+    private int bucket(int h) {
+        return (h * 0x9E3779B9) >>> shift;
+    }
+
+    private void allocate(int capacity) {
+        keys = new Value[capacity];
+        values = new Value[capacity];
+        hashes = new int[capacity];
+        shift = 32 - Integer.numberOfTrailingZeros(capacity);
+    }
+
+    /**
+     * Moves every entry into a table with the given number of buckets,
+     * which must be a power of two.
+     */
+    private void rehash(int capacity) {
+        Value[] oldKeys = keys;
+        Value[] oldValues = values;
+        int[] oldHashes = hashes;
+        allocate(capacity);
+        int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] != null) {
+                int i = bucket(oldHashes[j]);
+                while (keys[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+                hashes[i] = oldHashes[j];
+            }
+        }
+    }
+}
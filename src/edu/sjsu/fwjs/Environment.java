@@ -1,23 +1,205 @@
 package edu.sjsu.fwjs;
 
-import java.util.Map;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Variables are keyed by the symbol IDs from Symbols.  The methods that
+ * take a name are kept for convenience and intern the name first.
+ */
 public class Environment {
-    private Map<String, Value> env = new HashMap<String, Value>();
+    private IntMap<Value> env;
     private Environment outerEnv;
+    private Environment global;
+    // Only the global environment has cells.  Every global keeps the same
+    // cell for its lifetime, and the version changes whenever one is added.
+    // A concurrent global environment keeps them in sharedGlobals instead.
+    private IntMap<Cell> globals;
+    private ConcurrentHashMap<Integer, Cell> sharedGlobals;
+    private volatile int version;
+    // Globals of the environment this one was forked from.  The base is
+    // frozen: its cells are only read, and the first update of one of its
+    // globals gives this environment a cell of its own.
+    private Environment base;
+    // The global environment this one was forked from, if any.
+    private Environment forkedFrom;
+    // Only frames of resolved functions have slots; they have no map.
+    // Frames of functions resolved with tagged frames keep them in words,
+    // with references in refs, instead.
+    private Value[] slots;
+    private long[] words;
+    private Value[] refs;
+    private Cell[] cells;
+    private Value[] captured;
+    private Cell[] capturedCells;
+    private Scope layout;
+    private FrameStack stack;
+
+    private static final Cell[] NO_CELLS = new Cell[0];
 
     /**
      * Constructor for global environment
      */
     public Environment() {
+        this.globals = new IntMap<Cell>();
+        this.global = this;
+    }
+
+    /**
+     * Creates a global environment that may be shared by several threads.
+     *
+     * Reading a global never locks, and reads that hit a site's cached cell
+     * cost the same as in a single-threaded environment.  Each global is
+     * published with release/acquire semantics, so a thread that sees a
+     * value also sees everything the writing thread did before storing it.
+     * Creating a global, whether by declaring it or by updateVar on a name
+     * that is not defined anywhere, is atomic: every thread ends up with the
+     * same cell, and at most one of several racing declarations succeeds.
+     */
+    public static Environment concurrent() {
+        Environment env = new Environment();
+        env.globals = null;
+        env.sharedGlobals = new ConcurrentHashMap<Integer, Cell>();
+        return env;
+    }
+
+    /**
+     * Creates a global environment that starts out with the globals of
+     * this one, without copying them.
+     *
+     * Forking takes constant time.  The globals defined so far are frozen
+     * into a base shared by this environment and the fork, and each side
+     * keeps its later updates to itself: a global is only copied the first
+     * time one side changes it.  Forking the same environment again before
+     * it changes reuses the base, so any number of forks of a prepared
+     * environment share one set of globals.
+     *
+     * A concurrent environment gives concurrent forks.  It must not be
+     * updated by other threads while it is being forked.
+     */
+    public Environment fork() {
+        if (global != this) {
+            throw new RuntimeException("Only a global environment can be forked");
+        }
+        if (globalCount() > 0) {
+            Environment frozen = new Environment();
+            frozen.globals = globals;
+            frozen.sharedGlobals = sharedGlobals;
+            frozen.base = base;
+            base = frozen;
+            if (sharedGlobals != null) {
+                sharedGlobals = new ConcurrentHashMap<Integer, Cell>();
+            }
+            else globals = new IntMap<Cell>();
+            // Sites may have cached cells that now belong to the base.
+            version++;
+        }
+        Environment fork = sharedGlobals != null ? concurrent() : new Environment();
+        fork.base = base;
+        fork.forkedFrom = this;
+        return fork;
+    }
+
+    /**
+     * Gets the global environment that a function defined in global runs
+     * against when called from this environment.  A function of a prelude
+     * sees the globals of the fork it is called from, so this environment's
+     * global is used if it was forked, directly or not, from global.
+     * Otherwise the function keeps the globals it was defined in.
+     */
+    Environment globalFor(Environment global) {
+        Environment callerGlobal = this.global;
+        for (Environment e = callerGlobal; e != null; e = e.forkedFrom) {
+            if (e == global) {
+                return callerGlobal;
+            }
+        }
+        return global;
     }
 
     /**
      * Constructor for local environment of a function
      */
     public Environment(Environment outerEnv) {
+        this.env = new IntMap<Value>();
         this.outerEnv = outerEnv;
+        this.global = outerEnv.global;
+    }
+
+    /**
+     * Constructor for the frame of a resolved function.
+     * Variables are stored in a plain array sized from the function's
+     * parameters and local declarations, using the slots assigned by Scope.
+     * Variables shared with closures get a fresh cell, while the variables
+     * of enclosing functions come from the running closure.
+     * The outer scope of a frame is always the global environment.
+     */
+    Environment(Environment global, Scope layout, Value[] captured, Cell[] capturedCells,
+                FrameStack stack) {
+        this.stack = stack;
+        enterFrame(global, layout, captured, capturedCells);
+    }
+
+    /**
+     * Constructor for a frame that the frame stack reuses across calls.
+     */
+    Environment(FrameStack stack) {
+        this.stack = stack;
+    }
+
+    /**
+     * Sets up this frame for a call.  A reused frame keeps its slot array
+     * when it is big enough.
+     */
+    void enterFrame(Environment global, Scope layout, Value[] captured, Cell[] capturedCells) {
+        this.outerEnv = global;
+        this.global = global;
+        this.layout = layout;
+        if (layout.isTagged()) {
+            if (words == null || words.length < layout.getSlotCount()) {
+                this.words = new long[layout.getSlotCount()];
+                this.refs = null;
+            }
+        }
+        else if (slots == null || slots.length < layout.getSlotCount()) {
+            this.slots = new Value[layout.getSlotCount()];
+        }
+        if (layout.getCellCount() == 0) {
+            this.cells = NO_CELLS;
+        }
+        else {
+            this.cells = new Cell[layout.getCellCount()];
+            for (int i = 0; i < cells.length; i++) {
+                cells[i] = new Cell();
+            }
+        }
+        this.captured = captured;
+        this.capturedCells = capturedCells;
+    }
+
+    /**
+     * Clears a reused frame once its call returns, so that its variables
+     * are undeclared for the next call and no values are kept alive.
+     */
+    void exitFrame() {
+        if (layout.isTagged()) {
+            Arrays.fill(words, 0, layout.getSlotCount(), Tagged.UNDECLARED);
+            if (refs != null) {
+                Arrays.fill(refs, 0, layout.getSlotCount(), null);
+            }
+        }
+        else Arrays.fill(slots, 0, layout.getSlotCount(), null);
+        this.captured = null;
+        this.capturedCells = null;
+        this.outerEnv = null;
+        this.global = null;
+    }
+
+    /**
+     * Gets the frame stack for calls made from this environment.
+     */
+    FrameStack getFrameStack() {
+        return stack != null ? stack : FrameStack.current();
     }
 
     /**
@@ -28,6 +210,10 @@ public class Environment {
      * null is returned (similar to how JS returns undefined.
      */
     public Value resolveVar(String varName) {
+        return resolveVar(Symbols.intern(varName));
+    }
+
+    Value resolveVar(int varName) {
         Environment currentEnv = this;
         Value currentVar = currentEnv.getVar(varName);
         while (currentVar == null && currentEnv.getOuterEnv() != null) {
@@ -35,7 +221,7 @@ public class Environment {
             currentVar = currentEnv.getVar(varName);
         }
         if (currentVar == null) {
-            return new NullVal();
+            return NullVal.NULL;
         }
         return currentVar;
     }
@@ -46,14 +232,20 @@ public class Environment {
      * or any of the function's outer scopes, the var is stored in the global scope.
      */
     public void updateVar(String key, Value v) {
+        updateVar(Symbols.intern(key), v);
+    }
+
+    void updateVar(int key, Value v) {
         Environment currentEnv = this;
-        // Check if the variable not found and not at global scope.
-        while (currentEnv.getVar(key) == null &&
-                currentEnv.getOuterEnv() != null) {
+        // Each scope looks the variable up once, storing it if it is found.
+        while (currentEnv.getOuterEnv() != null) {
+            if (currentEnv.replaceVar(key, v)) {
+                return;
+            }
             // Go to next scope.
             currentEnv = currentEnv.getOuterEnv();
         }
-        // Variable found or at global scope, set variable in env.
+        // At global scope, set variable in env.
         currentEnv.setVar(key, v);
     }
 
@@ -63,30 +255,148 @@ public class Environment {
      * a RuntimeException is thrown.
      */
     public void createVar(String key, Value v) {
-        if (env.get(key) == null) {
-            env.put(key, v);
+        createVar(Symbols.intern(key), v);
+    }
+
+    void createVar(int key, Value v) {
+        if (layout != null) {
+            frameVar(key).declare(this, v);
+        }
+        else if (env != null) {
+            if (env.putIfAbsent(key, v) != null) {
+                throw new RuntimeException("Variable already defined");
+            }
+        }
+        else if (!getOrCreateGlobalCell(key).declare(v)) {
+            throw new RuntimeException("Variable already defined");
         }
-        else throw new RuntimeException("Variable already defined");
     }
 
     /**
-     * Gets variable from env HashMap.
+     * Gets variable from this scope only.
      *
      * @param varName variable to get.
      * @return variable value or null if it does not exist.
      */
     public Value getVar(String varName) {
+        return getVar(Symbols.intern(varName));
+    }
+
+    Value getVar(int varName) {
+        if (layout != null) {
+            VarRef ref = layout.addressOf(varName);
+            return ref == null ? null : ref.get(this);
+        }
+        if (env == null) {
+            Cell cell = getGlobalCell(varName);
+            return cell == null ? null : cell.get();
+        }
         return env.get(varName);
     }
 
     /**
-     * Sets a variable with a given key in the env HashMap.
+     * Sets a variable with a given key in this scope.
      *
      * @param key variable reference.
      * @param v   variable value.
      */
     public void setVar(String key, Value v) {
-        env.put(key, v);
+        setVar(Symbols.intern(key), v);
+    }
+
+    void setVar(int key, Value v) {
+        if (layout != null) {
+            frameVar(key).set(this, v);
+        }
+        else if (env == null) {
+            getOrCreateGlobalCell(key).set(v);
+        }
+        else env.put(key, v);
+    }
+
+    /**
+     * Sets a variable in this local scope if it has been declared here.
+     *
+     * @return false if this scope does not have the variable.
+     */
+    private boolean replaceVar(int key, Value v) {
+        if (layout != null) {
+            VarRef ref = layout.addressOf(key);
+            if (ref == null || ref.get(this) == null) {
+                return false;
+            }
+            ref.set(this, v);
+            return true;
+        }
+        return env.replace(key, v) != null;
+    }
+
+    /**
+     * Gets the cell of a global variable for reading.
+     * The cell may belong to the base of a forked environment, so it must
+     * not be changed; use getOrCreateGlobalCell to update a global.
+     *
+     * @return the cell, or null if the global has never been set.
+     */
+    Cell getGlobalCell(int key) {
+        Cell cell = sharedGlobals != null ? sharedGlobals.get(key) : globals.get(key);
+        if (cell == null && base != null) {
+            return base.getGlobalCell(key);
+        }
+        return cell;
+    }
+
+    /**
+     * Gets the cell of a global variable, adding one if it has never been set.
+     * A global of the base gets a cell of its own, holding the base's value.
+     */
+    Cell getOrCreateGlobalCell(int key) {
+        if (sharedGlobals != null) {
+            return getOrCreateSharedCell(key);
+        }
+        Cell cell = globals.get(key);
+        if (cell == null) {
+            cell = new Cell(baseValue(key));
+            globals.put(key, cell);
+            version++;
+        }
+        return cell;
+    }
+
+    /**
+     * The cell is added to the map before the version changes, so a
+     * thread that sees the new version also finds the cell.
+     */
+    private Cell getOrCreateSharedCell(int key) {
+        Cell cell = sharedGlobals.get(key);
+        if (cell == null) {
+            synchronized (sharedGlobals) {
+                cell = sharedGlobals.get(key);
+                if (cell == null) {
+                    cell = new SharedCell(baseValue(key));
+                    sharedGlobals.put(key, cell);
+                    version++;
+                }
+            }
+        }
+        return cell;
+    }
+
+    private Value baseValue(int key) {
+        Cell cell = base == null ? null : base.getGlobalCell(key);
+        return cell == null ? null : cell.get();
+    }
+
+    private int globalCount() {
+        return sharedGlobals != null ? sharedGlobals.size() : globals.size();
+    }
+
+    /**
+     * Gets the version of the global cells.  Caches of a global's cell
+     * are stale once the version changes.
+     */
+    int getVersion() {
+        return version;
     }
 
     /**
@@ -97,4 +407,105 @@ public class Environment {
     public Environment getOuterEnv() {
         return outerEnv;
     }
+
+    /**
+     * Gets the outermost (global) Environment.
+     */
+    public Environment getGlobal() {
+        return global;
+    }
+
+    /**
+     * Gets a variable from a frame slot.
+     *
+     * @return the value, or null if the variable has not been declared yet.
+     */
+    Value getSlot(int slot) {
+        return slots[slot];
+    }
+
+    /**
+     * Sets a frame slot.
+     */
+    void setSlot(int slot, Value v) {
+        slots[slot] = v;
+    }
+
+    /**
+     * Gets the packed word of a tagged frame slot.
+     */
+    long getWord(int slot) {
+        return words[slot];
+    }
+
+    /**
+     * Gets a variable from a tagged frame slot.
+     *
+     * @return the value, or null if the variable has not been declared yet.
+     */
+    Value getTaggedSlot(int slot) {
+        return Tagged.decode(words[slot], refs == null ? null : refs[slot]);
+    }
+
+    /**
+     * Sets a tagged frame slot.  The side table for references is only
+     * allocated once the frame holds one.
+     */
+    void setTaggedSlot(int slot, Value v) {
+        long word = Tagged.encode(v);
+        if (word == Tagged.REF) {
+            if (refs == null) {
+                refs = new Value[words.length];
+            }
+            refs[slot] = v;
+        }
+        else if (refs != null) {
+            refs[slot] = null;
+        }
+        words[slot] = word;
+    }
+
+    /**
+     * Sets a tagged frame slot to an int, without boxing it.
+     */
+    void setTaggedInt(int slot, int i) {
+        if (refs != null) {
+            refs[slot] = null;
+        }
+        words[slot] = Tagged.ofInt(i);
+    }
+
+    /**
+     * Gets a cell of a variable that this frame shares with closures.
+     */
+    Cell getCell(int i) {
+        return cells[i];
+    }
+
+    /**
+     * Gets a variable copied into the running closure.
+     */
+    Value getCaptured(int i) {
+        return captured[i];
+    }
+
+    /**
+     * Gets a variable shared with the running closure.
+     */
+    Cell getCapturedCell(int i) {
+        return capturedCells[i];
+    }
+
+    /**
+     * Finds a variable by name in a frame.
+     * A frame cannot grow, so names outside its layout are an error.
+     */
+    private VarRef frameVar(int key) {
+        VarRef ref = layout.addressOf(key);
+        if (ref == null) {
+            throw new RuntimeException("Variable " + Symbols.name(key)
+                    + " is not declared in this frame");
+        }
+        return ref;
+    }
 }
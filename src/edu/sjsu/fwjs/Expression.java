@@ -1,7 +1,11 @@
 package edu.sjsu.fwjs;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * FWJS expressions.
@@ -11,6 +15,47 @@ public interface Expression {
      * Evaluate the expression in the context of the specified environment.
      */
     public Value evaluate(Environment env);
+
+    /**
+     * Evaluate an expression that must produce a number, without boxing it.
+     * Expressions that compute numbers override this; the rest fall back to
+     * evaluate, failing as a cast would if the value is not a number.
+     * A number that does not fit in an int is thrown in an
+     * UnexpectedResultException instead.
+     */
+    public default int evaluateInt(Environment env) {
+        return Numbers.expectInt(evaluate(env));
+    }
+
+    /**
+     * Evaluate an expression that must produce a double, without boxing it.
+     * Any other number is thrown in an UnexpectedResultException.
+     */
+    public default double evaluateDouble(Environment env) {
+        return Numbers.expectDouble(evaluate(env));
+    }
+
+    /**
+     * Evaluate an expression that must produce a boolean, without boxing it.
+     */
+    public default boolean evaluateBoolean(Environment env) {
+        return ((BoolVal) evaluate(env)).toBoolean();
+    }
+
+    /**
+     * Evaluate an expression whose value is not used, such as a statement
+     * before the last one of a block.  Expressions that can then skip
+     * boxing their value override this.
+     */
+    public default void execute(Environment env) {
+        evaluate(env);
+    }
+
+    /**
+     * Rewrite the expression so that variables are addressed by frame slot
+     * instead of by name.  See Scope.resolve.
+     */
+    public Expression resolve(Scope scope);
 }
 
 // NOTE: Using package access so that all implementations of Expression
@@ -29,27 +74,82 @@ class ValueExpr implements Expression {
     public Value evaluate(Environment env) {
         return this.val;
     }
+
+    public int evaluateInt(Environment env) {
+        return Numbers.expectInt(this.val);
+    }
+
+    public double evaluateDouble(Environment env) {
+        return Numbers.expectDouble(this.val);
+    }
+
+    public boolean evaluateBoolean(Environment env) {
+        return ((BoolVal) this.val).toBoolean();
+    }
+
+    Value getValue() {
+        return this.val;
+    }
+
+    public Expression resolve(Scope scope) {
+        return this;
+    }
 }
 
 /**
  * Expressions that are a FWJS variable.
  */
 class VarExpr implements Expression {
-    private String varName;
+    private int varId;
 
     public VarExpr(String varName) {
-        this.varName = varName;
+        this.varId = Symbols.intern(varName);
+    }
+
+    public Value evaluate(Environment env) {
+        return env.resolveVar(varId);
+    }
+
+    public Expression resolve(Scope scope) {
+        return new ResolvedVarExpr(scope.reference(varId, VarRef.LOAD));
+    }
+}
+
+/**
+ * A variable that has been resolved to its frame addresses.
+ */
+class ResolvedVarExpr implements Expression {
+    private VarRef ref;
+
+    public ResolvedVarExpr(VarRef ref) {
+        this.ref = ref;
+    }
+
+    int getName() {
+        return ref.getName();
     }
 
     public Value evaluate(Environment env) {
-        return env.resolveVar(varName);
+        return ref.load(env);
+    }
+
+    public int evaluateInt(Environment env) {
+        return ref.loadInt(env);
+    }
+
+    public boolean evaluateBoolean(Environment env) {
+        return ref.loadBoolean(env);
+    }
+
+    public Expression resolve(Scope scope) {
+        return this;
     }
 }
 
 /**
  * A print expression.
  */
-class PrintExpr implements Expression {
+class PrintExpr implements CompoundExpr {
     private Expression exp;
 
     public PrintExpr(Expression exp) {
@@ -57,56 +157,309 @@ class PrintExpr implements Expression {
     }
 
     public Value evaluate(Environment env) {
-        Value v = exp.evaluate(env);
+        return print(exp.evaluate(env));
+    }
+
+    public Expression[] getOperands() {
+        return new Expression[] {exp};
+    }
+
+    public Value combine(Value[] operands, Environment env) {
+        return print(operands[0]);
+    }
+
+    private static Value print(Value v) {
         System.out.println(v.toString());
         return v;
     }
+
+    public Expression resolve(Scope scope) {
+        return new PrintExpr(exp.resolve(scope));
+    }
 }
 
 /**
  * Binary operators (+, -, *, etc).
- * Currently only numbers are supported.
+ * Apart from numbers, + concatenates strings, and == compares them.
+ *
+ * Each operand is evaluated according to the type it has produced so far:
+ * as an int, as a double, or as a Value of any type.  Int code thus
+ * computes with ints and double code with doubles, and neither boxes its
+ * intermediate results.  When an operand produces another type, or an
+ * int result overflows, the operation is finished by the slower code in
+ * Numbers, which promotes ints to longs and then BigIntegers, and the
+ * operand is evaluated more generally from then on.
+ *
+ * The code for the current operand types is a node from BinOpNodes, which
+ * the expression replaces with a more general one when the types widen.
  */
-class BinOpExpr implements Expression {
+class BinOpExpr implements CompoundExpr {
+    // Types of operands
+    private static final int UNINITIALIZED = -1;
+    private static final int INT = 0;
+    private static final int DOUBLE = 1;
+    private static final int GENERIC = 2;
+
     private Op op;
     private Expression e1;
     private Expression e2;
+    private int type1 = UNINITIALIZED;
+    private int type2 = UNINITIALIZED;
+    // Replaced by a more general node whenever an operand's type widens.
+    // See BinOpNodes.
+    private BinOpNodes.Node node;
 
     public BinOpExpr(Op op, Expression e1, Expression e2) {
         this.op = op;
         this.e1 = e1;
         this.e2 = e2;
+        this.node = new BinOpNodes.Uninitialized(this, e1, e2);
     }
 
     public Value evaluate(Environment env) {
-        int val1 = ((IntVal) e1.evaluate(env)).toInt();
-        int val2 = ((IntVal) e2.evaluate(env)).toInt();
+        return node.evaluate(env);
+    }
+
+    public int evaluateInt(Environment env) {
+        return node.evaluateInt(env);
+    }
+
+    public double evaluateDouble(Environment env) {
+        return node.evaluateDouble(env);
+    }
+
+    public boolean evaluateBoolean(Environment env) {
+        return node.evaluateBoolean(env);
+    }
+
+    /**
+     * Called by a node when the operands have produced values it does not
+     * handle.  Widens the operand types to include the values, replaces
+     * the node to match, and applies the operator to the values.
+     */
+    Value rewrite(Value v1, Value v2) {
+        type1 = generalize(type1, v1);
+        type2 = generalize(type2, v2);
+        if (type1 == GENERIC || type2 == GENERIC) {
+            node = new BinOpNodes.Generic(this, e1, e2);
+        }
+        else if (type1 == INT && type2 == INT) {
+            node = BinOpNodes.ints(this, op, e1, e2);
+        }
+        else node = new BinOpNodes.Doubles(this, op, e1, e2, type1 == INT, type2 == INT);
+        return operate(v1, v2);
+    }
+
+    /**
+     * Applies the operator to values of any type.
+     */
+    Value operate(Value v1, Value v2) {
+        if (isComparison()) {
+            return BoolVal.of(compare(v1, v2));
+        }
+        if (op == Op.ADD && (v1 instanceof StrVal || v2 instanceof StrVal)) {
+            return StrVal.concat(StrVal.of(v1), StrVal.of(v2));
+        }
+        return Numbers.arithmetic(op, v1, v2);
+    }
+
+    Expression getLeft() {
+        return e1;
+    }
+
+    Expression getRight() {
+        return e2;
+    }
+
+    /**
+     * The node the operation currently evaluates with.
+     */
+    BinOpNodes.Node getNode() {
+        return node;
+    }
+
+    /**
+     * Whether evaluateInt on the expression fails only where evaluate
+     * does, so that it can be used on a value of any type: a number, or
+     * an arithmetic operation, whose value is a number or a string.
+     */
+    static boolean isNumeric(Expression e) {
+        if (e instanceof ValueExpr) {
+            return Numbers.isNumber(((ValueExpr) e).getValue());
+        }
+        if (e instanceof BinOpExpr) {
+            return !((BinOpExpr) e).isComparison();
+        }
+        return e instanceof IdentityExpr;
+    }
 
+    boolean isComparison() {
         switch (op) {
-            case ADD:
-                return new IntVal(val1 + val2);
-            case SUBTRACT:
-                return new IntVal(val1 - val2);
-            case MULTIPLY:
-                return new IntVal(val1 * val2);
-            case DIVIDE:
-                return new IntVal(val1 / val2);
-            case MOD:
-                return new IntVal(val1 % val2);
             case GT:
-                return new BoolVal(val1 > val2);
             case GE:
-                return new BoolVal(val1 >= val2);
             case LT:
-                return new BoolVal(val1 < val2);
             case LE:
-                return new BoolVal(val1 <= val2);
             case EQ:
-                return new BoolVal(val1 == val2);
+                return true;
             default:
-                return new NullVal();
+                return false;
+        }
+    }
+
+    /**
+     * Applies the comparison to values of any type.
+     */
+    private boolean compare(Value v1, Value v2) {
+        if (op == Op.EQ && (v1 instanceof StrVal || v2 instanceof StrVal)) {
+            return v1.equals(v2);
+        }
+        return Numbers.test(op, v1, v2);
+    }
+
+    /**
+     * The type of an operand once it has produced a value.  Ints only
+     * move on to doubles; an operand producing ints after doubles, or any
+     * other number or a string, becomes generic.
+     */
+    private static int generalize(int type, Value v) {
+        if (v instanceof IntVal) {
+            return type == UNINITIALIZED ? INT : type == DOUBLE ? GENERIC : type;
+        }
+        if (v instanceof DoubleVal) {
+            return type == GENERIC ? GENERIC : DOUBLE;
+        }
+        return GENERIC;
+    }
+
+    public Expression[] getOperands() {
+        return new Expression[] {e1, e2};
+    }
+
+    public Value combine(Value[] operands, Environment env) {
+        return operate(operands[0], operands[1]);
+    }
+
+    /**
+     * Folds operations on constants into their values, and operations
+     * that leave an int unchanged, such as x * 1, into IdentityExprs.
+     * An operation on constants that fails, such as a division by zero,
+     * is left to fail when it runs.
+     */
+    public Expression resolve(Scope scope) {
+        BinOpExpr resolved = new BinOpExpr(op, e1.resolve(scope), e2.resolve(scope));
+        Expression r1 = resolved.e1;
+        Expression r2 = resolved.e2;
+        if (isConstant(r1) && isConstant(r2)) {
+            try {
+                return new ValueExpr(resolved.operate(((ValueExpr) r1).getValue(), ((ValueExpr) r2).getValue()));
+            } catch (RuntimeException e) {
+                return resolved;
+            }
+        }
+        if (isIdentity(r2, false)) {
+            return new IdentityExpr(resolved, r1, ((ValueExpr) r2).getValue(), false);
         }
+        if (isIdentity(r1, true)) {
+            return new IdentityExpr(resolved, r2, ((ValueExpr) r1).getValue(), true);
+        }
+        return resolved;
+    }
 
+    /**
+     * Whether the operand is a constant of an immutable type.  An array or
+     * object, for instance, could still change before the operation runs.
+     */
+    private static boolean isConstant(Expression operand) {
+        if (!(operand instanceof ValueExpr)) {
+            return false;
+        }
+        Value v = ((ValueExpr) operand).getValue();
+        return Numbers.isNumber(v) || v instanceof BoolVal || v instanceof NullVal
+                || v instanceof StrVal;
+    }
+
+    /**
+     * Whether the operand is a constant that leaves any int on the other
+     * side unchanged: 0 for x + 0, 0 + x and x - 0, 1 for x * 1, 1 * x and
+     * x / 1.
+     */
+    private boolean isIdentity(Expression operand, boolean first) {
+        if (!(operand instanceof ValueExpr)) {
+            return false;
+        }
+        Value v = ((ValueExpr) operand).getValue();
+        if (!(v instanceof IntVal)) {
+            return false;
+        }
+        switch (op) {
+            case ADD:
+                return ((IntVal) v).toInt() == 0;
+            case SUBTRACT:
+                return !first && ((IntVal) v).toInt() == 0;
+            case MULTIPLY:
+                return ((IntVal) v).toInt() == 1;
+            case DIVIDE:
+                return !first && ((IntVal) v).toInt() == 1;
+            default:
+                return false;
+        }
+    }
+}
+
+/**
+ * An operation that leaves an int operand unchanged, such as x * 1 or
+ * x + 0.  See BinOpExpr.resolve.
+ *
+ * An int is returned as it is.  The identity does not hold for every
+ * value, since "a" + 0 is "a0", -0.0 + 0 is 0.0 and true * 1 fails, so
+ * any other value goes through the whole operation.
+ */
+class IdentityExpr implements CompoundExpr {
+    private BinOpExpr whole;
+    private Expression e;
+    private Value constant;
+    private boolean constantFirst;
+
+    public IdentityExpr(BinOpExpr whole, Expression e, Value constant, boolean constantFirst) {
+        this.whole = whole;
+        this.e = e;
+        this.constant = constant;
+        this.constantFirst = constantFirst;
+    }
+
+    public Value evaluate(Environment env) {
+        return apply(e.evaluate(env));
+    }
+
+    public int evaluateInt(Environment env) {
+        try {
+            return e.evaluateInt(env);
+        } catch (UnexpectedResultException ex) {
+            return Numbers.expectInt(operate(ex.getResult()));
+        }
+    }
+
+    private Value operate(Value v) {
+        return constantFirst ? whole.operate(constant, v) : whole.operate(v, constant);
+    }
+
+    public Expression[] getOperands() {
+        return new Expression[] {e};
+    }
+
+    public Value combine(Value[] operands, Environment env) {
+        return apply(operands[0]);
+    }
+
+    private Value apply(Value v) {
+        if (v instanceof IntVal) {
+            return v;
+        }
+        return operate(v);
+    }
+
+    public Expression resolve(Scope scope) {
+        return this;
     }
 }
 
@@ -126,13 +479,49 @@ class IfExpr implements Expression {
     }
 
     public Value evaluate(Environment env) {
-        BoolVal con = (BoolVal) cond.evaluate(env);
-        Boolean c = con.toBoolean();
-        if (c) {
-            return this.thn.evaluate(env);
-        } else {
-            return this.els.evaluate(env);
+        return branch(cond.evaluateBoolean(env)).evaluate(env);
+    }
+
+    public void execute(Environment env) {
+        branch(cond.evaluateBoolean(env)).execute(env);
+    }
+
+    /**
+     * Gets the branch that a condition selects.
+     */
+    Expression branch(boolean c) {
+        return c ? this.thn : this.els;
+    }
+
+    Expression getCond() {
+        return cond;
+    }
+
+    Expression getThen() {
+        return thn;
+    }
+
+    Expression getElse() {
+        return els;
+    }
+
+    /**
+     * A constant condition leaves only the branch it selects.  Both
+     * branches are still resolved, so that the scope sees the same
+     * declarations either way.
+     */
+    public Expression resolve(Scope scope) {
+        Expression c = cond.resolve(scope);
+        Expression t = thn.resolve(scope);
+        Expression e = els.resolve(scope);
+        if (c instanceof ValueExpr && ((ValueExpr) c).getValue() instanceof BoolVal) {
+            return ((BoolVal) ((ValueExpr) c).getValue()).toBoolean() ? t : e;
         }
+        return new IfExpr(c, t, e);
+    }
+
+    Expression markTailCalls() {
+        return new IfExpr(cond, TailCallExpr.markTailCalls(thn), TailCallExpr.markTailCalls(els));
     }
 }
 
@@ -150,11 +539,29 @@ class WhileExpr implements Expression {
 
     public Value evaluate(Environment env) {
         Value body1 = null;
-        while(((BoolVal) cond.evaluate(env)).toBoolean()) {
+        while (cond.evaluateBoolean(env)) {
             body1 = this.body.evaluate(env);
         }
         return body1;
     }
+
+    public void execute(Environment env) {
+        while (cond.evaluateBoolean(env)) {
+            this.body.execute(env);
+        }
+    }
+
+    Expression getCond() {
+        return cond;
+    }
+
+    Expression getBody() {
+        return body;
+    }
+
+    public Expression resolve(Scope scope) {
+        return new WhileExpr(cond.resolve(scope), body.resolve(scope));
+    }
 }
 
 /**
@@ -169,28 +576,272 @@ class SeqExpr implements Expression {
         this.e2 = e2;
     }
 
+    /**
+     * Sequences usually nest to the right, one per statement, so the
+     * chain is followed in a loop rather than recursively.
+     */
     public Value evaluate(Environment env) {
-        e1.evaluate(env);
-        return e2.evaluate(env);
+        SeqExpr seq = this;
+        while (true) {
+            seq.e1.evaluate(env);
+            if (!(seq.e2 instanceof SeqExpr)) {
+                return seq.e2.evaluate(env);
+            }
+            seq = (SeqExpr) seq.e2;
+        }
+    }
+
+    Expression getFirst() {
+        return e1;
+    }
+
+    Expression getSecond() {
+        return e2;
+    }
+
+    /**
+     * Flattens the whole tree of sequences into one BlockExpr.  Statements
+     * other than the last that can neither fail nor have an effect are
+     * dropped, so the block does what the sequence did.
+     */
+    public Expression resolve(Scope scope) {
+        List<Expression> body = new ArrayList<Expression>();
+        ArrayDeque<Expression> pending = new ArrayDeque<Expression>();
+        pending.push(this);
+        while (!pending.isEmpty()) {
+            Expression e = pending.pop();
+            if (e instanceof SeqExpr) {
+                pending.push(((SeqExpr) e).e2);
+                pending.push(((SeqExpr) e).e1);
+                continue;
+            }
+            Expression r = e.resolve(scope);
+            if (r instanceof BlockExpr) {
+                body.addAll(Arrays.asList(((BlockExpr) r).getBody()));
+            }
+            else body.add(r);
+        }
+        List<Expression> kept = new ArrayList<Expression>();
+        // Locals declared by the statements so far, which are bound from
+        // then on.
+        Set<Integer> declared = new HashSet<Integer>();
+        for (int i = 0; i < body.size() - 1; i++) {
+            Expression e = body.get(i);
+            if (!BlockExpr.isPure(e, declared)) {
+                kept.add(e);
+            }
+            if (e instanceof ResolvedVarDeclExpr) {
+                declared.add(((ResolvedVarDeclExpr) e).getName());
+            }
+        }
+        kept.add(body.get(body.size() - 1));
+        if (kept.size() == 1) {
+            return kept.get(0);
+        }
+        return new BlockExpr(kept.toArray(new Expression[kept.size()]));
+    }
+}
+
+/**
+ * A flattened sequence of expressions, made by SeqExpr.resolve.
+ * The statements run in a loop, so a long program does not take a Java
+ * stack frame per statement.
+ */
+class BlockExpr implements Expression {
+    private Expression[] body;
+    private Expression last;
+
+    public BlockExpr(Expression[] body) {
+        this.body = body;
+        this.last = body[body.length - 1];
+    }
+
+    /**
+     * Whether evaluating the expression can neither fail nor have an
+     * effect, so that it can be dropped when its value is not used:
+     * constants, function declarations, reads of locals that an earlier
+     * statement of the block declared, and comparisons of two constant
+     * numbers.  Other variable reads and comparisons are kept, since
+     * comparing values that are not numbers fails.
+     *
+     * @param declared the locals known to be bound.
+     */
+    static boolean isPure(Expression e, Set<Integer> declared) {
+        if (e instanceof ValueExpr || e instanceof FunctionDeclExpr
+                || e instanceof ResolvedFunctionDeclExpr) {
+            return true;
+        }
+        if (e instanceof ResolvedVarExpr) {
+            return declared.contains(((ResolvedVarExpr) e).getName());
+        }
+        if (e instanceof BinOpExpr) {
+            BinOpExpr b = (BinOpExpr) e;
+            return b.isComparison() && isConstantNumber(b.getLeft())
+                    && isConstantNumber(b.getRight());
+        }
+        return false;
+    }
+
+    private static boolean isConstantNumber(Expression e) {
+        return e instanceof ValueExpr && Numbers.isNumber(((ValueExpr) e).getValue());
+    }
+
+    Expression[] getBody() {
+        return body;
+    }
+
+    Expression markTailCalls() {
+        Expression[] marked = body.clone();
+        marked[marked.length - 1] = TailCallExpr.markTailCalls(last);
+        return new BlockExpr(marked);
+    }
+
+    public Value evaluate(Environment env) {
+        runStatements(env);
+        return last.evaluate(env);
+    }
+
+    public int evaluateInt(Environment env) {
+        runStatements(env);
+        return last.evaluateInt(env);
+    }
+
+    public boolean evaluateBoolean(Environment env) {
+        runStatements(env);
+        return last.evaluateBoolean(env);
+    }
+
+    public void execute(Environment env) {
+        runStatements(env);
+        last.execute(env);
+    }
+
+    /**
+     * Runs every statement but the last, whose value is the block's.
+     */
+    private void runStatements(Environment env) {
+        Expression[] body = this.body;
+        for (int i = 0; i < body.length - 1; i++) {
+            body[i].execute(env);
+        }
+    }
+
+    public Expression resolve(Scope scope) {
+        return this;
     }
 }
 
 /**
  * Declaring a variable in the local scope.
  */
-class VarDeclExpr implements Expression {
-    private String varName;
+class VarDeclExpr implements CompoundExpr {
+    private int varId;
     private Expression exp;
 
     public VarDeclExpr(String varName, Expression exp) {
-        this.varName = varName;
+        this(Symbols.intern(varName), exp);
+    }
+
+    private VarDeclExpr(int varId, Expression exp) {
+        this.varId = varId;
         this.exp = exp;
     }
 
     public Value evaluate(Environment env) {
-        Value tempVal = exp.evaluate(env);
-        env.createVar(varName, tempVal);
-        return tempVal;
+        return declare(env, exp.evaluate(env));
+    }
+
+    public Expression[] getOperands() {
+        return new Expression[] {exp};
+    }
+
+    public Value combine(Value[] operands, Environment env) {
+        return declare(env, operands[0]);
+    }
+
+    private Value declare(Environment env, Value v) {
+        env.createVar(varId, v);
+        return v;
+    }
+
+    public Expression resolve(Scope scope) {
+        Expression resolvedExp = exp.resolve(scope);
+        if (scope.isGlobal()) {
+            return new VarDeclExpr(varId, resolvedExp);
+        }
+        return new ResolvedVarDeclExpr(scope.declare(varId), resolvedExp);
+    }
+}
+
+/**
+ * Declaring a variable in the current function frame.
+ */
+class ResolvedVarDeclExpr implements CompoundExpr {
+    private VarRef ref;
+    private Expression exp;
+
+    private boolean numeric;
+
+    public ResolvedVarDeclExpr(VarRef ref, Expression exp) {
+        this.ref = ref;
+        this.exp = exp;
+        this.numeric = BinOpExpr.isNumeric(exp);
+    }
+
+    int getName() {
+        return ref.getName();
+    }
+
+    public Value evaluate(Environment env) {
+        return declare(env, exp.evaluate(env));
+    }
+
+    /**
+     * A number declared in a tagged slot is stored without boxing it.
+     * A value that is not an int is declared before it is thrown.
+     */
+    public int evaluateInt(Environment env) {
+        if (!numeric || !ref.isTagged()) {
+            return Numbers.expectInt(evaluate(env));
+        }
+        int v;
+        try {
+            v = exp.evaluateInt(env);
+        } catch (UnexpectedResultException e) {
+            ref.declare(env, e.getResult());
+            throw e;
+        }
+        ref.declareInt(env, v);
+        return v;
+    }
+
+    public void execute(Environment env) {
+        if (!numeric || !ref.isTagged()) {
+            evaluate(env);
+            return;
+        }
+        try {
+            evaluateInt(env);
+        } catch (UnexpectedResultException e) {
+            // Already declared.
+        }
+    }
+
+    public Expression[] getOperands() {
+        return new Expression[] {exp};
+    }
+
+    public Value combine(Value[] operands, Environment env) {
+        return declare(env, operands[0]);
+    }
+
+    private Value declare(Environment env, Value v) {
+        ref.declare(env, v);
+        return v;
+    }
+
+    public Expression resolve(Scope scope) {
+        return this;
     }
 }
 
@@ -199,19 +850,104 @@ class VarDeclExpr implements Expression {
  * If the variable is not set already, it is added
  * to the global scope.
  */
-class AssignExpr implements Expression {
-    private String varName;
+class AssignExpr implements CompoundExpr {
+    private int varId;
     private Expression e;
 
     public AssignExpr(String varName, Expression e) {
-        this.varName = varName;
+        this.varId = Symbols.intern(varName);
         this.e = e;
     }
 
     public Value evaluate(Environment env) {
-        Value val1 = e.evaluate(env);
-        env.updateVar(varName, val1);
-        return env.resolveVar(varName);
+        return assign(env, e.evaluate(env));
+    }
+
+    public Expression[] getOperands() {
+        return new Expression[] {e};
+    }
+
+    public Value combine(Value[] operands, Environment env) {
+        return assign(env, operands[0]);
+    }
+
+    private Value assign(Environment env, Value v) {
+        // The variable now holds v, so there is no need to look it up again.
+        env.updateVar(varId, v);
+        return v;
+    }
+
+    public Expression resolve(Scope scope) {
+        return new ResolvedAssignExpr(scope.reference(varId, VarRef.STORE), e.resolve(scope));
+    }
+}
+
+/**
+ * Updating a variable that has been resolved to its frame addresses.
+ */
+class ResolvedAssignExpr implements CompoundExpr {
+    private VarRef ref;
+    private Expression e;
+
+    private boolean numeric;
+
+    public ResolvedAssignExpr(VarRef ref, Expression e) {
+        this.ref = ref;
+        this.e = e;
+        this.numeric = BinOpExpr.isNumeric(e);
+    }
+
+    public Value evaluate(Environment env) {
+        return assign(env, e.evaluate(env));
+    }
+
+    /**
+     * A number stored in a tagged slot is not boxed, so i = i + 1 on a
+     * tagged int allocates nothing.  A value that is not an int is
+     * stored before it is thrown.
+     */
+    public int evaluateInt(Environment env) {
+        if (!numeric || !ref.isTagged()) {
+            return Numbers.expectInt(evaluate(env));
+        }
+        int v;
+        try {
+            v = e.evaluateInt(env);
+        } catch (UnexpectedResultException ex) {
+            ref.store(env, ex.getResult());
+            throw ex;
+        }
+        ref.storeInt(env, v);
+        return v;
+    }
+
+    public void execute(Environment env) {
+        if (!numeric || !ref.isTagged()) {
+            evaluate(env);
+            return;
+        }
+        try {
+            evaluateInt(env);
+        } catch (UnexpectedResultException ex) {
+            // Already stored.
+        }
+    }
+
+    public Expression[] getOperands() {
+        return new Expression[] {e};
+    }
+
+    public Value combine(Value[] operands, Environment env) {
+        return assign(env, operands[0]);
+    }
+
+    private Value assign(Environment env, Value v) {
+        ref.store(env, v);
+        return v;
+    }
+
+    public Expression resolve(Scope scope) {
+        return this;
     }
 }
 
@@ -220,15 +956,61 @@ class AssignExpr implements Expression {
  */
 class FunctionDeclExpr implements Expression {
     private List<String> params;
+    private int[] paramIds;
     private Expression body;
 
     public FunctionDeclExpr(List<String> params, Expression body) {
+        this.params = params;
+        this.paramIds = new int[params.size()];
+        for (int i = 0; i < paramIds.length; i++) {
+            paramIds[i] = Symbols.intern(params.get(i));
+        }
+        this.body = body;
+    }
+
+    public Value evaluate(Environment env) {
+        return new ClosureVal(params, paramIds, body, env);
+    }
+
+    public Expression resolve(Scope scope) {
+        Scope fnScope = scope.enterFunction(paramIds);
+        Expression resolvedBody = TailCallExpr.markTailCalls(body.resolve(fnScope));
+        return new ResolvedFunctionDeclExpr(params, resolvedBody, fnScope);
+    }
+}
+
+/**
+ * A function declaration whose body has been resolved against its own scope.
+ * The resulting closures run in slot-based frames and only capture the
+ * variables of enclosing functions that the body uses.
+ */
+class ResolvedFunctionDeclExpr implements Expression {
+    private List<String> params;
+    private Expression body;
+    private Scope scope;
+
+    public ResolvedFunctionDeclExpr(List<String> params, Expression body, Scope scope) {
         this.params = params;
         this.body = body;
+        this.scope = scope;
     }
 
     public Value evaluate(Environment env) {
-        return new ClosureVal(params, body, env);
+        VarRef[] copySources = scope.getCopySources();
+        Value[] copies = new Value[copySources.length];
+        for (int i = 0; i < copies.length; i++) {
+            copies[i] = copySources[i].get(env);
+        }
+        VarRef[] cellSources = scope.getCellSources();
+        Cell[] cells = new Cell[cellSources.length];
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = cellSources[i].getCell(env);
+        }
+        return new ClosureVal(params, body, scope, copies, cells, env.getGlobal());
+    }
+
+    public Expression resolve(Scope scope) {
+        return this;
     }
 }
 
@@ -238,20 +1020,374 @@ class FunctionDeclExpr implements Expression {
 class FunctionAppExpr implements Expression {
     private Expression f;
     private List<Expression> args;
+    // Whether every function called here so far was a closure.  A
+    // closure is checked for with one compare, since ClosureVal is final,
+    // and called directly instead of through the FunctionVal interface.
+    private boolean closuresOnly = true;
     public FunctionAppExpr(Expression f, List<Expression> args) {
         this.f = f;
         this.args = args;
     }
     public Value evaluate(Environment env) {
-        ClosureVal val = (ClosureVal) f.evaluate(env);	// Evaluate f expression to get ClosureVal
+        Value fn = f.evaluate(env);	// Evaluate f expression to get a closure or builtin
+        if (closuresOnly) {
+            if (fn instanceof ClosureVal) {
+                return ((ClosureVal) fn).apply(evaluateArgs(env), env);
+            }
+            closuresOnly = false;
+        }
+        FunctionVal val = (FunctionVal) fn;
+        // Apply the evaluated Expressions to the val function.
+        return val.apply(evaluateArgs(env), env);
+    }
+
+    Expression getFunction() {
+        return f;
+    }
+
+    List<Expression> getArgs() {
+        return args;
+    }
+
+    List<Value> evaluateArgs(Environment env) {
         List<Value> evalArgs = new ArrayList<Value>();	// List to hold evaluated values.
 
         // Add evaluated Expressions from args to evalArgs to be used in the function.
         for(int i = 0; i < args.size(); i++) {
             evalArgs.add(args.get(i).evaluate(env));
         }
-        // Apply the evaluated Expressions to the val function.
-        return val.apply(evalArgs);
+        return evalArgs;
+    }
+
+    public Expression resolve(Scope scope) {
+        List<Expression> resolvedArgs = new ArrayList<Expression>();
+        for (Expression arg : args) {
+            resolvedArgs.add(arg.resolve(scope));
+        }
+        return new FunctionAppExpr(f.resolve(scope), resolvedArgs);
+    }
+}
+
+
+/**
+ * A call in tail position, whose value is the value of the function it
+ * is in.  Instead of calling a closure, it returns a TailCall, which the
+ * closure being returned from then makes in its place.  See
+ * ClosureVal.apply.  Builtins are called right away.
+ *
+ * Tail calls are marked when a function body is resolved, so they are
+ * only ever evaluated as the value of a function body.
+ */
+class TailCallExpr implements Expression {
+    private FunctionAppExpr call;
+
+    public TailCallExpr(FunctionAppExpr call) {
+        this.call = call;
+    }
+
+    /**
+     * Marks the calls in tail position in a resolved function body: the
+     * body itself, the branches of an if in tail position, and the last
+     * statement of a block in tail position.
+     */
+    static Expression markTailCalls(Expression body) {
+        if (body instanceof FunctionAppExpr) {
+            return new TailCallExpr((FunctionAppExpr) body);
+        }
+        if (body instanceof IfExpr) {
+            return ((IfExpr) body).markTailCalls();
+        }
+        if (body instanceof BlockExpr) {
+            return ((BlockExpr) body).markTailCalls();
+        }
+        return body;
+    }
+
+    public Value evaluate(Environment env) {
+        Value fn = call.getFunction().evaluate(env);
+        if (fn instanceof ClosureVal) {
+            return new TailCall((ClosureVal) fn, call.evaluateArgs(env));
+        }
+        return ((FunctionVal) fn).apply(call.evaluateArgs(env), env);
+    }
+
+    FunctionAppExpr getCall() {
+        return call;
+    }
+
+    public Expression resolve(Scope scope) {
+        return this;
+    }
+}
+
+/**
+ * Array literals, e.g. [1, 2, 3].
+ */
+class ArrayExpr implements CompoundExpr {
+    private List<Expression> elements;
+
+    public ArrayExpr(List<Expression> elements) {
+        this.elements = elements;
+    }
+
+    public Value evaluate(Environment env) {
+        Value[] values = new Value[elements.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = elements.get(i).evaluate(env);
+        }
+        return combine(values, env);
+    }
+
+    public Expression[] getOperands() {
+        return elements.toArray(new Expression[elements.size()]);
+    }
+
+    public Value combine(Value[] operands, Environment env) {
+        return new ArrayVal(Arrays.asList(operands));
+    }
+
+    public Expression resolve(Scope scope) {
+        List<Expression> resolved = new ArrayList<Expression>();
+        for (Expression e : elements) {
+            resolved.add(e.resolve(scope));
+        }
+        return new ArrayExpr(resolved);
+    }
+}
+
+/**
+ * Reading an element of an array, e.g. a[i].
+ * Elements of arrays of ints or booleans are read without boxing them.
+ */
+class IndexExpr implements CompoundExpr {
+    private Expression array;
+    private Expression index;
+
+    public IndexExpr(Expression array, Expression index) {
+        this.array = array;
+        this.index = index;
+    }
+
+    public Value evaluate(Environment env) {
+        ArrayVal arr = (ArrayVal) array.evaluate(env);
+        return load(arr, ArrayVal.evaluateIndex(index, env));
+    }
+
+    public int evaluateInt(Environment env) {
+        ArrayVal arr = (ArrayVal) array.evaluate(env);
+        return arr.getInt(ArrayVal.evaluateIndex(index, env));
+    }
+
+    public boolean evaluateBoolean(Environment env) {
+        ArrayVal arr = (ArrayVal) array.evaluate(env);
+        return arr.getBoolean(ArrayVal.evaluateIndex(index, env));
+    }
+
+    public Expression[] getOperands() {
+        return new Expression[] {array, index};
+    }
+
+    public Value combine(Value[] operands, Environment env) {
+        return load((ArrayVal) operands[0], ArrayVal.toIndex(operands[1]));
+    }
+
+    private static Value load(ArrayVal arr, int i) {
+        return arr.get(i);
+    }
+
+    public Expression resolve(Scope scope) {
+        return new IndexExpr(array.resolve(scope), index.resolve(scope));
+    }
+}
+
+/**
+ * Setting an element of an array, e.g. a[i] = v.
+ * Like other assignments, it evaluates to the value stored.
+ */
+class IndexAssignExpr implements CompoundExpr {
+    private Expression array;
+    private Expression index;
+    private Expression e;
+
+    public IndexAssignExpr(Expression array, Expression index, Expression e) {
+        this.array = array;
+        this.index = index;
+        this.e = e;
+    }
+
+    public Value evaluate(Environment env) {
+        ArrayVal arr = (ArrayVal) array.evaluate(env);
+        int i = ArrayVal.evaluateIndex(index, env);
+        return store(arr, i, e.evaluate(env));
+    }
+
+    public Expression[] getOperands() {
+        return new Expression[] {array, index, e};
+    }
+
+    public Value combine(Value[] operands, Environment env) {
+        return store((ArrayVal) operands[0], ArrayVal.toIndex(operands[1]), operands[2]);
+    }
+
+    private static Value store(ArrayVal arr, int i, Value v) {
+        arr.set(i, v);
+        return v;
+    }
+
+    public Expression resolve(Scope scope) {
+        return new IndexAssignExpr(array.resolve(scope), index.resolve(scope), e.resolve(scope));
     }
 }
 
+/**
+ * The length of an array.
+ */
+class LengthExpr implements CompoundExpr {
+    private Expression array;
+
+    public LengthExpr(Expression array) {
+        this.array = array;
+    }
+
+    public Value evaluate(Environment env) {
+        return IntVal.of(evaluateInt(env));
+    }
+
+    public int evaluateInt(Environment env) {
+        return length(array.evaluate(env));
+    }
+
+    public Expression[] getOperands() {
+        return new Expression[] {array};
+    }
+
+    public Value combine(Value[] operands, Environment env) {
+        return IntVal.of(length(operands[0]));
+    }
+
+    private static int length(Value arr) {
+        return ((ArrayVal) arr).length();
+    }
+
+    public Expression resolve(Scope scope) {
+        return new LengthExpr(array.resolve(scope));
+    }
+}
+
+/**
+ * Object literals, e.g. {x: 1, y: 2}.
+ * Objects built by the same literal all end up in the same shape.
+ */
+class ObjectExpr implements CompoundExpr {
+    private List<String> names;
+    private List<PropertyRef> props;
+    private List<Expression> values;
+
+    public ObjectExpr(List<String> names, List<Expression> values) {
+        this.names = names;
+        this.props = new ArrayList<PropertyRef>();
+        for (String name : names) {
+            props.add(new PropertyRef(name));
+        }
+        this.values = values;
+    }
+
+    public Value evaluate(Environment env) {
+        Value[] vals = new Value[values.size()];
+        for (int i = 0; i < vals.length; i++) {
+            vals[i] = values.get(i).evaluate(env);
+        }
+        return combine(vals, env);
+    }
+
+    public Expression[] getOperands() {
+        return values.toArray(new Expression[values.size()]);
+    }
+
+    public Value combine(Value[] operands, Environment env) {
+        ObjVal obj = new ObjVal();
+        for (int i = 0; i < props.size(); i++) {
+            props.get(i).store(obj, operands[i]);
+        }
+        return obj;
+    }
+
+    public Expression resolve(Scope scope) {
+        List<Expression> resolved = new ArrayList<Expression>();
+        for (Expression e : values) {
+            resolved.add(e.resolve(scope));
+        }
+        return new ObjectExpr(names, resolved);
+    }
+}
+
+/**
+ * Reading a property of an object, e.g. o.x.
+ */
+class PropertyExpr implements CompoundExpr {
+    private Expression obj;
+    private PropertyRef prop;
+
+    public PropertyExpr(Expression obj, String name) {
+        this.obj = obj;
+        this.prop = new PropertyRef(name);
+    }
+
+    public Value evaluate(Environment env) {
+        return load(obj.evaluate(env));
+    }
+
+    public Expression[] getOperands() {
+        return new Expression[] {obj};
+    }
+
+    public Value combine(Value[] operands, Environment env) {
+        return load(operands[0]);
+    }
+
+    private Value load(Value o) {
+        return prop.load((ObjVal) o);
+    }
+
+    public Expression resolve(Scope scope) {
+        return new PropertyExpr(obj.resolve(scope), prop.getName());
+    }
+}
+
+/**
+ * Setting a property of an object, e.g. o.x = v.
+ * The property is added if the object does not have it yet.
+ */
+class PropertyAssignExpr implements CompoundExpr {
+    private Expression obj;
+    private PropertyRef prop;
+    private Expression e;
+
+    public PropertyAssignExpr(Expression obj, String name, Expression e) {
+        this.obj = obj;
+        this.prop = new PropertyRef(name);
+        this.e = e;
+    }
+
+    public Value evaluate(Environment env) {
+        ObjVal o = (ObjVal) obj.evaluate(env);
+        return store(o, e.evaluate(env));
+    }
+
+    public Expression[] getOperands() {
+        return new Expression[] {obj, e};
+    }
+
+    public Value combine(Value[] operands, Environment env) {
+        return store((ObjVal) operands[0], operands[1]);
+    }
+
+    private Value store(ObjVal o, Value v) {
+        prop.store(o, v);
+        return v;
+    }
+
+    public Expression resolve(Scope scope) {
+        return new PropertyAssignExpr(obj.resolve(scope), prop.getName(), e.resolve(scope));
+    }
+}
@@ -0,0 +1,57 @@
+package edu.sjsu.fwjs;
+
+/**
+ * A per-thread stack of reusable frames.
+ *
+ * Frames of functions whose variables no closure captures cannot outlive
+ * their call, so instead of allocating a new Environment for every such
+ * call, the frame at the current call depth is reused.
+ */
+final class FrameStack {
+    private static final ThreadLocal<FrameStack> CURRENT = new ThreadLocal<FrameStack>() {
+        @Override
+        protected FrameStack initialValue() {
+            return new FrameStack();
+        }
+    };
+
+    private Environment[] frames = new Environment[16];
+    private int top;
+
+    private FrameStack() {
+    }
+
+    /**
+     * Gets the frame stack of the running thread.
+     */
+    static FrameStack current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Enters a frame for a call of a function that does not capture its scope.
+     * It must be released with pop once the call returns.
+     */
+    Environment push(Environment global, Scope layout, Value[] captured, Cell[] capturedCells) {
+        if (top == frames.length) {
+            Environment[] bigger = new Environment[frames.length * 2];
+            System.arraycopy(frames, 0, bigger, 0, frames.length);
+            frames = bigger;
+        }
+        Environment frame = frames[top];
+        if (frame == null) {
+            frame = new Environment(this);
+            frames[top] = frame;
+        }
+        frame.enterFrame(global, layout, captured, capturedCells);
+        top++;
+        return frame;
+    }
+
+    /**
+     * Releases the frame on top of the stack.
+     */
+    void pop() {
+        frames[--top].exitFrame();
+    }
+}
@@ -0,0 +1,13 @@
+package edu.sjsu.fwjs;
+
+import java.util.List;
+
+/**
+ * Values that can be called, such as closures and builtins.
+ */
+interface FunctionVal extends Value {
+    /**
+     * Calls the function from the given environment.
+     */
+    Value apply(List<Value> argVals, Environment callerEnv);
+}
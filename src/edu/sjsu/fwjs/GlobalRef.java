@@ -0,0 +1,78 @@
+package edu.sjsu.fwjs;
+
+/**
+ * An inline cache for one site that reads or updates a global variable.
+ *
+ * After the first lookup the site keeps the variable's cell, so later
+ * accesses skip the hash lookup.  The cache is tied to one global
+ * environment and one version of its cells: it is refreshed when the site
+ * runs against another environment, or after a new global is added, which
+ * may be the one a cached miss was waiting for.
+ *
+ * The cache is a single immutable entry, so threads sharing the site
+ * never see the cell of one lookup paired with the version of another.
+ */
+class GlobalRef {
+    private int name;
+    private Entry cache;
+
+    GlobalRef(int name) {
+        this.name = name;
+    }
+
+    /**
+     * Reads the variable, returning a NullVal if it is not defined.
+     */
+    Value load(Environment global) {
+        Cell c = lookup(global, false);
+        Value v = c == null ? null : c.get();
+        if (v == null) {
+            return NullVal.NULL;
+        }
+        return v;
+    }
+
+    /**
+     * Sets the variable, creating it if it is not defined.
+     */
+    void store(Environment global, Value v) {
+        lookup(global, true).set(v);
+    }
+
+    /**
+     * A site either only reads or only updates its variable, so a cached
+     * cell is always one that the site may use: sites that update the
+     * variable never cache a cell of the base of a forked environment.
+     */
+    private Cell lookup(Environment global, boolean update) {
+        Entry e = cache;
+        if (e == null || e.owner != global || e.version != global.getVersion()) {
+            Cell c;
+            int version;
+            if (update) {
+                c = global.getOrCreateGlobalCell(name);
+                version = global.getVersion();
+            }
+            else {
+                // Read the version first: a global added after it bumps the version again.
+                version = global.getVersion();
+                c = global.getGlobalCell(name);
+            }
+            e = new Entry(global, version, c);
+            cache = e;
+        }
+        return e.cell;
+    }
+
+    private static final class Entry {
+        final Environment owner;
+        final int version;
+        final Cell cell;
+
+        Entry(Environment owner, int version, Cell cell) {
+            this.owner = owner;
+            this.version = version;
+            this.cell = cell;
+        }
+    }
+}
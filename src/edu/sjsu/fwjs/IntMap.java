@@ -0,0 +1,230 @@
+package edu.sjsu.fwjs;
+
+import java.util.Arrays;
+
+/**
+ * A map from non-negative int keys (such as symbol IDs) to values.
+ *
+ * Most scopes only hold a handful of variables, so the storage is picked
+ * by size:
+ * - up to two entries are kept in fields, without allocating any array;
+ * - up to four entries are kept in small parallel arrays that are
+ *   scanned linearly, which is as fast as hashing at that size;
+ * - larger maps use open addressing with linear probing.
+ * Keys are interned IDs, so every layout compares them with ==, and no
+ * layout boxes keys or allocates entry objects.
+ */
+class IntMap<V> {
+    private static final int EMPTY = -1;
+    private static final int INLINE_MAX = 2;
+    private static final int LINEAR_MAX = 4;
+    // What a store does depending on whether the key is present
+    private static final int ALWAYS = 0;
+    private static final int IF_ABSENT = 1;
+    private static final int IF_PRESENT = 2;
+
+    private int size;
+    // Inline layout
+    private int key0 = EMPTY;
+    private int key1 = EMPTY;
+    private Object value0;
+    private Object value1;
+    // Array layouts, linear while shift is 0
+    private int[] keys;
+    private Object[] values;
+    private int shift;
+
+    /**
+     * @return the value for the key, or null if there is none.
+     */
+    @SuppressWarnings("unchecked")
+    V get(int key) {
+        if (keys == null) {
+            if (key == key0) {
+                return (V) value0;
+            }
+            if (key == key1) {
+                return (V) value1;
+            }
+            return null;
+        }
+        if (shift == 0) {
+            for (int i = 0; i < size; i++) {
+                if (keys[i] == key) {
+                    return (V) values[i];
+                }
+            }
+            return null;
+        }
+        int mask = keys.length - 1;
+        for (int i = bucket(key); ; i = (i + 1) & mask) {
+            int k = keys[i];
+            if (k == key) {
+                return (V) values[i];
+            }
+            if (k == EMPTY) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Associates the value with the key.
+     *
+     * @return the previous value for the key, or null if there was none.
+     */
+    V put(int key, V value) {
+        return store(key, value, ALWAYS);
+    }
+
+    /**
+     * Associates the value with the key unless the key already has one.
+     *
+     * @return the value already associated with the key, or null if the
+     * value was added.
+     */
+    V putIfAbsent(int key, V value) {
+        return store(key, value, IF_ABSENT);
+    }
+
+    /**
+     * Associates the value with the key only if the key already has one.
+     *
+     * @return the previous value for the key, or null if nothing changed.
+     */
+    V replace(int key, V value) {
+        return store(key, value, IF_PRESENT);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Finds the key once and stores the value there if the mode allows it.
+     * Values are never null, so a present key always has a value.
+     */
+    @SuppressWarnings("unchecked")
+    private V store(int key, V value, int mode) {
+        if (keys == null) {
+            if (key == key0) {
+                V old = (V) value0;
+                if (mode != IF_ABSENT) {
+                    value0 = value;
+                }
+                return old;
+            }
+            if (key == key1) {
+                V old = (V) value1;
+                if (mode != IF_ABSENT) {
+                    value1 = value;
+                }
+                return old;
+            }
+            if (mode == IF_PRESENT) {
+                return null;
+            }
+            if (size < INLINE_MAX) {
+                if (size == 0) {
+                    key0 = key;
+                    value0 = value;
+                } else {
+                    key1 = key;
+                    value1 = value;
+                }
+                size++;
+                return null;
+            }
+            toLinear();
+        }
+        if (shift == 0) {
+            for (int i = 0; i < size; i++) {
+                if (keys[i] == key) {
+                    V old = (V) values[i];
+                    if (mode != IF_ABSENT) {
+                        values[i] = value;
+                    }
+                    return old;
+                }
+            }
+            if (mode == IF_PRESENT) {
+                return null;
+            }
+            if (size < LINEAR_MAX) {
+                keys[size] = key;
+                values[size] = value;
+                size++;
+                return null;
+            }
+            rehash(LINEAR_MAX * 4);
+        }
+        return putHashed(key, value, mode);
+    }
+
+    @SuppressWarnings("unchecked")
+    private V putHashed(int key, V value, int mode) {
+        int mask = keys.length - 1;
+        int i = bucket(key);
+        while (keys[i] != EMPTY) {
+            if (keys[i] == key) {
+                V old = (V) values[i];
+                if (mode != IF_ABSENT) {
+                    values[i] = value;
+                }
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+        if (mode == IF_PRESENT) {
+            return null;
+        }
+        keys[i] = key;
+        values[i] = value;
+        // Keep the table at most half full so probe sequences stay short.
+        if (++size * 2 > keys.length) {
+            rehash(keys.length * 2);
+        }
+        return null;
+    }
+
+    /**
+     * Fibonacci hashing spreads consecutive IDs over the whole table.
+     */
+    private int bucket(int key) {
+        return (key * 0x9E3779B9) >>> shift;
+    }
+
+    private void toLinear() {
+        keys = new int[LINEAR_MAX];
+        values = new Object[LINEAR_MAX];
+        keys[0] = key0;
+        values[0] = value0;
+        keys[1] = key1;
+        values[1] = value1;
+        key0 = key1 = EMPTY;
+        value0 = value1 = null;
+    }
+
+    /**
+     * Moves every entry into a hash table with the given number of buckets,
+     * which must be a power of two.
+     */
+    @SuppressWarnings("unchecked")
+    private void rehash(int capacity) {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        boolean wasLinear = shift == 0;
+        int oldSize = size;
+        keys = new int[capacity];
+        values = new Object[capacity];
+        Arrays.fill(keys, EMPTY);
+        shift = 32 - Integer.numberOfTrailingZeros(capacity);
+        size = 0;
+        int n = wasLinear ? oldSize : oldKeys.length;
+        for (int i = 0; i < n; i++) {
+            if (oldKeys[i] != EMPTY) {
+                putHashed(oldKeys[i], (V) oldValues[i], ALWAYS);
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package edu.sjsu.fwjs;
+
+/**
+ * Integers that fit in an int.
+ * Integers that do not fit in an int are LongVals or BigIntVals,
+ * and other numbers are DoubleVals.
+ */
+class IntVal implements Value {
+    // Small integers are shared.  The range can be changed with the
+    // fwjs.intCache.low and fwjs.intCache.high system properties.
+    private static final int CACHE_LOW = Integer.getInteger("fwjs.intCache.low", -128);
+    private static final int CACHE_HIGH = Integer.getInteger("fwjs.intCache.high", 1023);
+    private static final IntVal[] CACHE = new IntVal[Math.max(0, CACHE_HIGH - CACHE_LOW + 1)];
+    static {
+        for (int k = 0; k < CACHE.length; k++) {
+            CACHE[k] = new IntVal(CACHE_LOW + k);
+        }
+    }
+    private int i;
+    public IntVal(int i) { this.i = i; }
+    /**
+     * Gets the value for an integer, sharing one instance per small integer.
+     */
+    public static IntVal of(int i) {
+        if (i >= CACHE_LOW && i <= CACHE_HIGH) {
+            return CACHE[i - CACHE_LOW];
+        }
+        return new IntVal(i);
+    }
+    public int toInt() { return this.i; }
+    @Override
+    public boolean equals(Object that) {
+        if (!(that instanceof IntVal)) return false;
+        return this.i == ((IntVal) that).i;
+    }
+    @Override
+    public int hashCode() {
+        return this.i;
+    }
+    @Override
+    public String toString() {
+        return "" + this.i;
+    }
+}
@@ -4,8 +4,15 @@ public class Interpreter {
 
     public static void main(String[] args) throws Exception {
         Expression prog = new BinOpExpr(Op.ADD,
-                new ValueExpr(new IntVal(3)),
-                new ValueExpr(new IntVal(4)));
-        System.out.println("'3 + 4;' evaluates to " + prog.evaluate(new Environment()));
+                new ValueExpr(IntVal.of(3)),
+                new ValueExpr(IntVal.of(4)));
+        prog = Scope.resolve(prog);
+        Environment env = new Environment();
+        Builtins.install(env);
+        // Run with -Dfwjs.stackEvaluator=true for programs that recurse deeply.
+        Value result = Boolean.getBoolean("fwjs.stackEvaluator")
+                ? StackEvaluator.evaluate(prog, env)
+                : prog.evaluate(env);
+        System.out.println("'3 + 4;' evaluates to " + result);
     }
 }
@@ -0,0 +1,435 @@
+package edu.sjsu.fwjs;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Persistent hash maps, from any value to any value.
+ *
+ * Like VectorVal, a map never changes.  Putting or removing a key gives a
+ * new map that shares all but O(log32 n) of its nodes with the old one.
+ * The map is a hash array mapped trie: each level uses five bits of the
+ * key's hash to pick a child, and a bitmap records which children exist,
+ * so nodes only hold the entries they need.  Keys whose hashes are equal
+ * end up in a node that is searched linearly.
+ */
+final class MapVal implements Value {
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    static final MapVal EMPTY = new MapVal(BitmapNode.EMPTY, 0);
+
+    private final Node root;
+    private final int size;
+    // Computed on first use; the map never changes.  A hash of 0 is
+    // recorded in hashIsZero, so that it is not computed again.
+    private int hash;
+    private boolean hashIsZero;
+
+    private MapVal(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the value for a key, or null if the map does not have the key.
+     * Unlike get, this tells a missing key from one mapped to null.
+     */
+    Value find(Value key) {
+        return root.find(0, hash(key), key);
+    }
+
+    /**
+     * Gets the value for a key, or a NullVal if the map does not have it.
+     */
+    public Value get(Value key) {
+        Value v = find(key);
+        return v == null ? NullVal.NULL : v;
+    }
+
+    public boolean has(Value key) {
+        return find(key) != null;
+    }
+
+    /**
+     * Gets a map with the key set to the value.
+     */
+    public MapVal put(Value key, Value val) {
+        boolean[] added = new boolean[1];
+        Node newRoot = root.put(0, hash(key), key, val, added);
+        if (newRoot == root) {
+            return this;
+        }
+        return new MapVal(newRoot, added[0] ? size + 1 : size);
+    }
+
+    /**
+     * Gets a map without the key.
+     */
+    public MapVal remove(Value key) {
+        Node newRoot = root.remove(0, hash(key), key);
+        if (newRoot == root) {
+            return this;
+        }
+        return new MapVal(newRoot == null ? BitmapNode.EMPTY : newRoot, size - 1);
+    }
+
+    /**
+     * Adds every key and its value to the lists, in no particular order.
+     */
+    void collect(List<Value> keys, List<Value> values) {
+        root.collect(keys, values);
+    }
+
+    @Override
+    public boolean equals(Object that) {
+        if (this == that) return true;
+        if (!(that instanceof MapVal)) return false;
+        MapVal other = (MapVal) that;
+        if (this.size != other.size || this.hashCode() != other.hashCode()) return false;
+        return root.entriesIn(other);
+    }
+
+    /**
+     * The sum of the entries' hashes, which does not depend on the order
+     * of the entries.
+     */
+    @Override
+    public int hashCode() {
+        int h = hash;
+        if (h == 0 && !hashIsZero) {
+            h = root.entryHash();
+            if (h == 0) {
+                hashIsZero = true;
+            }
+            else hash = h;
+        }
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("hashMap(");
+        root.print(sb, sb.length());
+        return sb.append(")").toString();
+    }
+
+    /**
+     * Spreads the high bits of the hash, since the trie starts with the low ones.
+     */
+    private static int hash(Value key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private abstract static class Node {
+        /**
+         * @return the value, or null if the key is missing.
+         */
+        abstract Value find(int shift, int hash, Value key);
+
+        /**
+         * @return the new node, or this node if nothing changed.
+         */
+        abstract Node put(int shift, int hash, Value key, Value val, boolean[] added);
+
+        /**
+         * @return the new node, this node if the key is missing, or null
+         * if the node is left empty.
+         */
+        abstract Node remove(int shift, int hash, Value key);
+
+        abstract void collect(List<Value> keys, List<Value> values);
+
+        /**
+         * @return the sum of the hashes of the entries under this node.
+         */
+        abstract int entryHash();
+
+        /**
+         * @return whether the map has every entry under this node.
+         */
+        abstract boolean entriesIn(MapVal map);
+
+        /**
+         * Appends the entries under this node, each after a comma unless
+         * nothing has been appended since start.
+         */
+        abstract void print(StringBuilder sb, int start);
+    }
+
+    private static int entryHash(Value key, Value val) {
+        return key.hashCode() ^ val.hashCode();
+    }
+
+    private static boolean entryIn(Value key, Value val, MapVal map) {
+        return val.equals(map.find(key));
+    }
+
+    private static void print(Value key, Value val, StringBuilder sb, int start) {
+        if (sb.length() > start) {
+            sb.append(", ");
+        }
+        sb.append(key).append(", ").append(val);
+    }
+
+    /**
+     * A node with up to 32 children.  For each child, the array holds the
+     * key and value of an entry, or null and a child node.
+     */
+    private static final class BitmapNode extends Node {
+        static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+        private final int bitmap;
+        private final Object[] array;
+
+        BitmapNode(int bitmap, Object[] array) {
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        Value find(int shift, int hash, Value key) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return null;
+            }
+            int i = 2 * index(bit);
+            Object k = array[i];
+            if (k == null) {
+                return ((Node) array[i + 1]).find(shift + BITS, hash, key);
+            }
+            return key.equals(k) ? (Value) array[i + 1] : null;
+        }
+
+        Node put(int shift, int hash, Value key, Value val, boolean[] added) {
+            int bit = bit(hash, shift);
+            int i = 2 * index(bit);
+            if ((bitmap & bit) == 0) {
+                Object[] copy = new Object[array.length + 2];
+                System.arraycopy(array, 0, copy, 0, i);
+                copy[i] = key;
+                copy[i + 1] = val;
+                System.arraycopy(array, i, copy, i + 2, array.length - i);
+                added[0] = true;
+                return new BitmapNode(bitmap | bit, copy);
+            }
+            Object k = array[i];
+            Object v = array[i + 1];
+            Object[] copy = array.clone();
+            if (k == null) {
+                Node child = ((Node) v).put(shift + BITS, hash, key, val, added);
+                if (child == v) {
+                    return this;
+                }
+                copy[i + 1] = child;
+            }
+            else if (key.equals(k)) {
+                if (v == val) {
+                    return this;
+                }
+                copy[i + 1] = val;
+            }
+            else {
+                // Two keys share this child, which becomes a node of its own.
+                added[0] = true;
+                copy[i] = null;
+                copy[i + 1] = merge(shift + BITS, (Value) k, (Value) v, hash, key, val);
+            }
+            return new BitmapNode(bitmap, copy);
+        }
+
+        Node remove(int shift, int hash, Value key) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            int i = 2 * index(bit);
+            Object k = array[i];
+            if (k == null) {
+                Node child = (Node) array[i + 1];
+                Node newChild = child.remove(shift + BITS, hash, key);
+                if (newChild == child) {
+                    return this;
+                }
+                if (newChild != null) {
+                    Object[] copy = array.clone();
+                    copy[i + 1] = newChild;
+                    return new BitmapNode(bitmap, copy);
+                }
+            }
+            else if (!key.equals(k)) {
+                return this;
+            }
+            if (bitmap == bit) {
+                return null;
+            }
+            Object[] copy = new Object[array.length - 2];
+            System.arraycopy(array, 0, copy, 0, i);
+            System.arraycopy(array, i + 2, copy, i, array.length - i - 2);
+            return new BitmapNode(bitmap & ~bit, copy);
+        }
+
+        void collect(List<Value> keys, List<Value> values) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (array[i] == null) {
+                    ((Node) array[i + 1]).collect(keys, values);
+                }
+                else {
+                    keys.add((Value) array[i]);
+                    values.add((Value) array[i + 1]);
+                }
+            }
+        }
+
+        int entryHash() {
+            int h = 0;
+            for (int i = 0; i < array.length; i += 2) {
+                if (array[i] == null) {
+                    h += ((Node) array[i + 1]).entryHash();
+                }
+                else h += MapVal.entryHash((Value) array[i], (Value) array[i + 1]);
+            }
+            return h;
+        }
+
+        boolean entriesIn(MapVal map) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (array[i] == null) {
+                    if (!((Node) array[i + 1]).entriesIn(map)) return false;
+                }
+                else if (!entryIn((Value) array[i], (Value) array[i + 1], map)) return false;
+            }
+            return true;
+        }
+
+        void print(StringBuilder sb, int start) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (array[i] == null) {
+                    ((Node) array[i + 1]).print(sb, start);
+                }
+                else MapVal.print((Value) array[i], (Value) array[i + 1], sb, start);
+            }
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        private static int bit(int hash, int shift) {
+            return 1 << ((hash >>> shift) & MASK);
+        }
+
+        private static Node merge(int shift, Value k1, Value v1, int hash2, Value k2, Value v2) {
+            int hash1 = hash(k1);
+            if (hash1 == hash2) {
+                return new CollisionNode(hash1, new Value[] {k1, k2}, new Value[] {v1, v2});
+            }
+            boolean[] added = new boolean[1];
+            return EMPTY.put(shift, hash1, k1, v1, added).put(shift, hash2, k2, v2, added);
+        }
+    }
+
+    /**
+     * The entries of keys that have the same hash.
+     */
+    private static final class CollisionNode extends Node {
+        private final int hash;
+        private final Value[] keys;
+        private final Value[] values;
+
+        CollisionNode(int hash, Value[] keys, Value[] values) {
+            this.hash = hash;
+            this.keys = keys;
+            this.values = values;
+        }
+
+        Value find(int shift, int hash, Value key) {
+            int i = indexOf(hash, key);
+            return i < 0 ? null : values[i];
+        }
+
+        Node put(int shift, int hash, Value key, Value val, boolean[] added) {
+            if (hash != this.hash) {
+                // A key with another hash reached this node, which moves down a level.
+                Node node = new BitmapNode(BitmapNode.bit(this.hash, shift), new Object[] {null, this});
+                return node.put(shift, hash, key, val, added);
+            }
+            int i = indexOf(hash, key);
+            if (i >= 0) {
+                if (values[i] == val) {
+                    return this;
+                }
+                Value[] newValues = values.clone();
+                newValues[i] = val;
+                return new CollisionNode(hash, keys, newValues);
+            }
+            Value[] newKeys = Arrays.copyOf(keys, keys.length + 1);
+            Value[] newValues = Arrays.copyOf(values, values.length + 1);
+            newKeys[keys.length] = key;
+            newValues[values.length] = val;
+            added[0] = true;
+            return new CollisionNode(hash, newKeys, newValues);
+        }
+
+        Node remove(int shift, int hash, Value key) {
+            int i = indexOf(hash, key);
+            if (i < 0) {
+                return this;
+            }
+            if (keys.length == 1) {
+                return null;
+            }
+            Value[] newKeys = new Value[keys.length - 1];
+            Value[] newValues = new Value[values.length - 1];
+            System.arraycopy(keys, 0, newKeys, 0, i);
+            System.arraycopy(keys, i + 1, newKeys, i, keys.length - i - 1);
+            System.arraycopy(values, 0, newValues, 0, i);
+            System.arraycopy(values, i + 1, newValues, i, values.length - i - 1);
+            return new CollisionNode(hash, newKeys, newValues);
+        }
+
+        void collect(List<Value> keys, List<Value> values) {
+            for (int i = 0; i < this.keys.length; i++) {
+                keys.add(this.keys[i]);
+                values.add(this.values[i]);
+            }
+        }
+
+        int entryHash() {
+            int h = 0;
+            for (int i = 0; i < keys.length; i++) {
+                h += MapVal.entryHash(keys[i], values[i]);
+            }
+            return h;
+        }
+
+        boolean entriesIn(MapVal map) {
+            for (int i = 0; i < keys.length; i++) {
+                if (!entryIn(keys[i], values[i], map)) return false;
+            }
+            return true;
+        }
+
+        void print(StringBuilder sb, int start) {
+            for (int i = 0; i < keys.length; i++) {
+                MapVal.print(keys[i], values[i], sb, start);
+            }
+        }
+
+        private int indexOf(int hash, Value key) {
+            if (hash != this.hash) {
+                return -1;
+            }
+            for (int i = 0; i < keys.length; i++) {
+                if (key.equals(keys[i])) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+}
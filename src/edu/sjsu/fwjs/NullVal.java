@@ -0,0 +1,23 @@
+package edu.sjsu.fwjs;
+
+/**
+ * The null value.
+ */
+class NullVal implements Value {
+    /**
+     * Null has no state, so one instance is enough.
+     */
+    static final NullVal NULL = new NullVal();
+    @Override
+    public boolean equals(Object that) {
+        return (that instanceof NullVal);
+    }
+    @Override
+    public int hashCode() {
+        return 0;
+    }
+    @Override
+    public String toString() {
+        return "null";
+    }
+}
@@ -0,0 +1,227 @@
+package edu.sjsu.fwjs;
+
+import java.math.BigInteger;
+
+/**
+ * The numeric tower: IntVal, LongVal and BigIntVal, plus DoubleVal.
+ *
+ * Every integer has a single representation, the narrowest type it fits
+ * in, so integers of different types are never equal.  BinOpExpr computes
+ * with ints and only comes here once a result or an operand does not fit
+ * in an int; the methods here then work with longs, and with BigIntegers
+ * once a long overflows too.  An operation on a double and any other
+ * number converts the other number to a double.
+ */
+final class Numbers {
+    private static final BigInteger LONG_MIN = BigInteger.valueOf(Long.MIN_VALUE);
+    private static final BigInteger LONG_MAX = BigInteger.valueOf(Long.MAX_VALUE);
+
+    private Numbers() {
+    }
+
+    /**
+     * Gets the narrowest value for a long.
+     */
+    static Value of(long n) {
+        if ((int) n == n) {
+            return IntVal.of((int) n);
+        }
+        return new LongVal(n);
+    }
+
+    /**
+     * Gets the narrowest value for a BigInteger.
+     */
+    static Value of(BigInteger n) {
+        if (n.compareTo(LONG_MIN) >= 0 && n.compareTo(LONG_MAX) <= 0) {
+            return of(n.longValue());
+        }
+        return new BigIntVal(n);
+    }
+
+    /**
+     * Gets a number as an int, for Expression.evaluateInt.
+     *
+     * @throws UnexpectedResultException if the number does not fit in an
+     * int, or if the value is a string, which + also accepts.
+     * @throws ClassCastException if the value is something else.
+     */
+    static int expectInt(Value v) {
+        if (v instanceof IntVal) {
+            return ((IntVal) v).toInt();
+        }
+        if (isNumber(v) || v instanceof StrVal) {
+            throw new UnexpectedResultException(v);
+        }
+        return ((IntVal) v).toInt();
+    }
+
+    /**
+     * Gets a number as a double, for Expression.evaluateDouble.
+     *
+     * @throws UnexpectedResultException if the number is not a double,
+     * or if the value is a string.
+     * @throws ClassCastException if the value is something else.
+     */
+    static double expectDouble(Value v) {
+        if (v instanceof DoubleVal) {
+            return ((DoubleVal) v).toDouble();
+        }
+        if (isNumber(v) || v instanceof StrVal) {
+            throw new UnexpectedResultException(v);
+        }
+        return ((DoubleVal) v).toDouble();
+    }
+
+    static boolean isNumber(Value v) {
+        return v instanceof IntVal || v instanceof DoubleVal
+                || v instanceof LongVal || v instanceof BigIntVal;
+    }
+
+    /**
+     * Applies an arithmetic operator to numbers of any type.
+     */
+    static Value arithmetic(Op op, Value v1, Value v2) {
+        if (v1 instanceof DoubleVal || v2 instanceof DoubleVal) {
+            return new DoubleVal(arithmetic(op, toDouble(v1), toDouble(v2)));
+        }
+        if (!(v1 instanceof BigIntVal) && !(v2 instanceof BigIntVal)) {
+            long n1 = toLong(v1);
+            long n2 = toLong(v2);
+            try {
+                switch (op) {
+                    case ADD:
+                        return of(Math.addExact(n1, n2));
+                    case SUBTRACT:
+                        return of(Math.subtractExact(n1, n2));
+                    case MULTIPLY:
+                        return of(Math.multiplyExact(n1, n2));
+                    case DIVIDE:
+                        if (n1 == Long.MIN_VALUE && n2 == -1) {
+                            break;
+                        }
+                        return of(n1 / n2);
+                    case MOD:
+                        return of(n1 % n2);
+                    default:
+                        throw new IllegalArgumentException(op + " is not arithmetic");
+                }
+            } catch (ArithmeticException e) {
+                if (n2 == 0) {
+                    // Division by zero, not overflow.
+                    throw e;
+                }
+            }
+        }
+        BigInteger b1 = toBigInteger(v1);
+        BigInteger b2 = toBigInteger(v2);
+        switch (op) {
+            case ADD:
+                return of(b1.add(b2));
+            case SUBTRACT:
+                return of(b1.subtract(b2));
+            case MULTIPLY:
+                return of(b1.multiply(b2));
+            case DIVIDE:
+                return of(b1.divide(b2));
+            case MOD:
+                // Like %, the remainder takes the sign of the dividend.
+                return of(b1.remainder(b2));
+            default:
+                throw new IllegalArgumentException(op + " is not arithmetic");
+        }
+    }
+
+    /**
+     * Applies an arithmetic operator to doubles.
+     */
+    static double arithmetic(Op op, double d1, double d2) {
+        switch (op) {
+            case ADD:
+                return d1 + d2;
+            case SUBTRACT:
+                return d1 - d2;
+            case MULTIPLY:
+                return d1 * d2;
+            case DIVIDE:
+                return d1 / d2;
+            case MOD:
+                return d1 % d2;
+            default:
+                throw new IllegalArgumentException(op + " is not arithmetic");
+        }
+    }
+
+    /**
+     * Applies a comparison to numbers of any type.
+     */
+    static boolean test(Op op, Value v1, Value v2) {
+        if (v1 instanceof DoubleVal || v2 instanceof DoubleVal) {
+            return test(op, toDouble(v1), toDouble(v2));
+        }
+        int cmp;
+        if (!(v1 instanceof BigIntVal) && !(v2 instanceof BigIntVal)) {
+            cmp = Long.compare(toLong(v1), toLong(v2));
+        }
+        else cmp = toBigInteger(v1).compareTo(toBigInteger(v2));
+        switch (op) {
+            case GT:
+                return cmp > 0;
+            case GE:
+                return cmp >= 0;
+            case LT:
+                return cmp < 0;
+            case LE:
+                return cmp <= 0;
+            case EQ:
+                return cmp == 0;
+            default:
+                throw new IllegalArgumentException(op + " is not a comparison");
+        }
+    }
+
+    /**
+     * Applies a comparison to doubles.  Like in JS, any comparison with
+     * NaN is false.
+     */
+    static boolean test(Op op, double d1, double d2) {
+        switch (op) {
+            case GT:
+                return d1 > d2;
+            case GE:
+                return d1 >= d2;
+            case LT:
+                return d1 < d2;
+            case LE:
+                return d1 <= d2;
+            case EQ:
+                return d1 == d2;
+            default:
+                throw new IllegalArgumentException(op + " is not a comparison");
+        }
+    }
+
+    private static double toDouble(Value v) {
+        if (v instanceof DoubleVal) {
+            return ((DoubleVal) v).toDouble();
+        }
+        if (v instanceof BigIntVal) {
+            return ((BigIntVal) v).toBigInteger().doubleValue();
+        }
+        return toLong(v);
+    }
+
+    private static long toLong(Value v) {
+        if (v instanceof LongVal) {
+            return ((LongVal) v).toLong();
+        }
+        return ((IntVal) v).toInt();
+    }
+
+    private static BigInteger toBigInteger(Value v) {
+        if (v instanceof BigIntVal) {
+            return ((BigIntVal) v).toBigInteger();
+        }
+        return BigInteger.valueOf(toLong(v));
+    }
+}
@@ -0,0 +1,76 @@
+package edu.sjsu.fwjs;
+
+/**
+ * Objects.
+ *
+ * An object keeps its property values in an array, and its Shape maps
+ * each property name to a slot of that array.  Property sites cache the
+ * shape and slot they last saw (see PropertyRef), so reading a property
+ * of an object of the usual shape is a shape check and an array load.
+ */
+class ObjVal implements Value {
+    private Shape shape = Shape.EMPTY;
+    private Value[] slots = new Value[4];
+
+    public ObjVal() {
+    }
+
+    Shape getShape() {
+        return shape;
+    }
+
+    Value getSlot(int index) {
+        return slots[index];
+    }
+
+    void setSlot(int index, Value v) {
+        slots[index] = v;
+    }
+
+    /**
+     * Adds a property, moving the object from its shape to the child
+     * shape for that property.  The new property gets the last slot.
+     */
+    void addProperty(Shape newShape, Value v) {
+        int index = shape.size();
+        if (index == slots.length) {
+            Value[] bigger = new Value[slots.length * 2];
+            System.arraycopy(slots, 0, bigger, 0, slots.length);
+            slots = bigger;
+        }
+        slots[index] = v;
+        shape = newShape;
+    }
+
+    /**
+     * Gets a property, or null if the object does not have it.
+     */
+    public Value get(String name) {
+        int index = shape.indexOf(Symbols.intern(name));
+        return index < 0 ? NullVal.NULL : slots[index];
+    }
+
+    /**
+     * Sets a property, adding it if the object does not have it.
+     */
+    public void set(String name, Value v) {
+        int id = Symbols.intern(name);
+        int index = shape.indexOf(id);
+        if (index < 0) {
+            addProperty(shape.with(id), v);
+        }
+        else slots[index] = v;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < shape.size(); i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(Symbols.name(shape.nameAt(i))).append(": ").append(slots[i]);
+        }
+        return sb.append("}").toString();
+    }
+}
@@ -0,0 +1,69 @@
+package edu.sjsu.fwjs;
+
+/**
+ * An inline cache for one site that reads or sets a property.
+ *
+ * The site keeps the last shape it saw along with the slot of the
+ * property in it.  As long as objects arrive in that shape, an access is
+ * a shape check and an array access.  A site that adds the property also
+ * keeps the shape that objects move to, so adding it skips the lookup in
+ * the shape's transitions as well.
+ *
+ * Like GlobalRef, the cache is a single immutable entry, so threads
+ * sharing the site never pair one shape with the slot of another.
+ */
+class PropertyRef {
+    private int name;
+    private Entry cache;
+
+    PropertyRef(String name) {
+        this.name = Symbols.intern(name);
+    }
+
+    String getName() {
+        return Symbols.name(name);
+    }
+
+    /**
+     * Reads the property, returning a NullVal if the object does not have it.
+     */
+    Value load(ObjVal obj) {
+        Shape shape = obj.getShape();
+        Entry e = cache;
+        if (e == null || e.shape != shape) {
+            e = new Entry(shape, shape.indexOf(name), null);
+            cache = e;
+        }
+        return e.index < 0 ? NullVal.NULL : obj.getSlot(e.index);
+    }
+
+    /**
+     * Sets the property, adding it if the object does not have it.
+     */
+    void store(ObjVal obj, Value v) {
+        Shape shape = obj.getShape();
+        Entry e = cache;
+        if (e == null || e.shape != shape) {
+            int index = shape.indexOf(name);
+            e = new Entry(shape, index, index < 0 ? shape.with(name) : null);
+            cache = e;
+        }
+        if (e.index < 0) {
+            obj.addProperty(e.newShape, v);
+        }
+        else obj.setSlot(e.index, v);
+    }
+
+    private static final class Entry {
+        final Shape shape;
+        final int index;
+        // The shape after adding the property, if the shape does not have it.
+        final Shape newShape;
+
+        Entry(Shape shape, int index, Shape newShape) {
+            this.shape = shape;
+            this.index = index;
+            this.newShape = newShape;
+        }
+    }
+}
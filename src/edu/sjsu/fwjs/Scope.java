@@ -0,0 +1,335 @@
+package edu.sjsu.fwjs;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compile-time scopes used by the lexical addressing pass.
+ *
+ * The global scope keeps its variables by symbol.  Every function gets its
+ * own scope in which each parameter and local declaration is given a slot
+ * in the function's frame.  Variable references are recorded while the
+ * tree is rewritten and linked to frame addresses once every scope has
+ * seen all of its declarations.
+ *
+ * Closures are flat: a function only captures the variables of enclosing
+ * functions that its body (or a function nested in it) actually uses.
+ * Parameters that are never assigned or redeclared are copied into the
+ * closure.  Any other captured variable lives in a Cell shared between
+ * the declaring frame and every closure that uses it.
+ */
+public class Scope {
+    private Scope parent;
+    private Map<Integer, Binding> bindings = new LinkedHashMap<Integer, Binding>();
+    private List<Binding> captures = new ArrayList<Binding>();
+    private Map<Binding, Integer> captureIndexes = new HashMap<Binding, Integer>();
+    private IntMap<VarRef> addresses = new IntMap<VarRef>();
+    private VarRef[] params;
+    private VarRef[] copySources;
+    private VarRef[] cellSources;
+    private int slotCount;
+    private int cellCount;
+    private boolean poolable;
+    private boolean tagged;
+    // Only used by the global scope.
+    private List<VarRef> refs;
+    private List<Scope> functions;
+
+    /**
+     * Constructor for the global scope.
+     */
+    private Scope() {
+        this.refs = new ArrayList<VarRef>();
+        this.functions = new ArrayList<Scope>();
+    }
+
+    /**
+     * Constructor for the scope of a function.
+     */
+    private Scope(Scope parent, int[] paramNames) {
+        this.parent = parent;
+        this.tagged = parent.tagged;
+        this.params = new VarRef[paramNames.length];
+        for (int i = 0; i < paramNames.length; i++) {
+            int name = paramNames[i];
+            bind(name);
+            params[i] = new VarRef(name, this, VarRef.DECLARE);
+            getRoot().refs.add(params[i]);
+        }
+        getRoot().functions.add(this);
+    }
+
+    /**
+     * Rewrites a program so that every variable inside a function is
+     * accessed through its frame address instead of by name.
+     * The program is expected to run in a global environment.
+     * Frames are tagged if the fwjs.taggedFrames system property is true.
+     */
+    public static Expression resolve(Expression prog) {
+        return resolve(prog, Boolean.getBoolean("fwjs.taggedFrames"));
+    }
+
+    /**
+     * Rewrites a program as above, choosing how its frames keep variables.
+     * Tagged frames pack numbers, booleans and null into a long[] (see
+     * Tagged), which suits programs that mostly compute with numbers.
+     */
+    public static Expression resolve(Expression prog, boolean taggedFrames) {
+        Scope global = new Scope();
+        global.tagged = taggedFrames;
+        Expression resolved = prog.resolve(global);
+        global.link();
+        return resolved;
+    }
+
+    /**
+     * Creates the scope for a function declared in this scope.
+     */
+    Scope enterFunction(int[] params) {
+        return new Scope(this, params);
+    }
+
+    boolean isGlobal() {
+        return parent == null;
+    }
+
+    /**
+     * Declares a variable in this function scope.
+     */
+    VarRef declare(int name) {
+        bind(name);
+        return reference(name, VarRef.DECLARE);
+    }
+
+    /**
+     * Records a read or an update of a variable from this scope.
+     * The returned reference is only usable once the whole program
+     * has been resolved.
+     */
+    VarRef reference(int name, int kind) {
+        VarRef ref = new VarRef(name, this, kind);
+        getRoot().refs.add(ref);
+        return ref;
+    }
+
+    int getSlotCount() {
+        return slotCount;
+    }
+
+    int getCellCount() {
+        return cellCount;
+    }
+
+    /**
+     * Whether frames of this function can be reused once a call returns.
+     * That is the case when no nested function captures any of its variables.
+     */
+    boolean isPoolable() {
+        return poolable;
+    }
+
+    /**
+     * Whether frames of this function keep their slots packed in a long[].
+     */
+    boolean isTagged() {
+        return tagged;
+    }
+
+    VarRef[] getParams() {
+        return params;
+    }
+
+    /**
+     * Addresses, in the declaring frame, of the variables that closures
+     * of this function copy.
+     */
+    VarRef[] getCopySources() {
+        return copySources;
+    }
+
+    /**
+     * Addresses, in the declaring frame, of the cells that closures
+     * of this function share.
+     */
+    VarRef[] getCellSources() {
+        return cellSources;
+    }
+
+    /**
+     * Finds a local or captured variable of this function by name.
+     *
+     * @return its address, or null if the function does not use the name.
+     */
+    VarRef addressOf(int name) {
+        return addresses.get(name);
+    }
+
+    private void bind(int name) {
+        if (!bindings.containsKey(name)) {
+            bindings.put(name, new Binding(name, this));
+        }
+    }
+
+    private Scope getRoot() {
+        Scope s = this;
+        while (s.parent != null) {
+            s = s.parent;
+        }
+        return s;
+    }
+
+    /**
+     * Makes a binding of an enclosing function available in this one,
+     * capturing it in every function in between as well.
+     */
+    private void capture(Binding b) {
+        if (b.owner == this || captureIndexes.containsKey(b)) {
+            return;
+        }
+        captureIndexes.put(b, -1);
+        captures.add(b);
+        b.captured = true;
+        parent.capture(b);
+    }
+
+    /**
+     * Links every reference once the whole program has been seen.
+     * First find out which variables are captured or updated, then lay out
+     * each frame and closure, and finally compute each reference's address.
+     */
+    private void link() {
+        for (VarRef ref : refs) {
+            List<Binding> candidates = new ArrayList<Binding>();
+            for (Scope s = ref.getScope(); !s.isGlobal(); s = s.parent) {
+                Binding b = s.bindings.get(ref.getName());
+                if (b != null) {
+                    candidates.add(b);
+                    if (ref.getKind() == VarRef.DECLARE) {
+                        break;
+                    }
+                }
+            }
+            // Parameters are bound once per call, which does not count as an update.
+            boolean updates = ref.getKind() != VarRef.LOAD && !isParam(ref);
+            for (Binding b : candidates) {
+                if (updates) {
+                    b.updated = true;
+                }
+                ref.getScope().capture(b);
+            }
+            ref.setCandidates(candidates);
+        }
+        List<VarRef> sources = new ArrayList<VarRef>();
+        for (Scope fn : functions) {
+            fn.layout(sources);
+        }
+        refs.addAll(sources);
+        for (VarRef ref : refs) {
+            ref.link();
+        }
+        for (Scope fn : functions) {
+            for (Map.Entry<Integer, Binding> e : fn.bindings.entrySet()) {
+                fn.addresses.put(e.getKey(), fn.addressFor(e.getKey(), e.getValue()));
+            }
+            for (Binding b : fn.captures) {
+                if (fn.addresses.get(b.name) == null) {
+                    fn.addresses.put(b.name, fn.addressFor(b.name, b));
+                }
+            }
+        }
+    }
+
+    private static boolean isParam(VarRef ref) {
+        if (ref.getScope().isGlobal()) {
+            return false;
+        }
+        for (VarRef param : ref.getScope().params) {
+            if (param == ref) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Assigns frame slots and cells to the bindings of this function, and
+     * closure indexes to its captures.
+     */
+    private void layout(List<VarRef> sources) {
+        poolable = true;
+        for (Binding b : bindings.values()) {
+            b.index = b.isBoxed() ? cellCount++ : slotCount++;
+            if (b.captured) {
+                poolable = false;
+            }
+        }
+        List<VarRef> copies = new ArrayList<VarRef>();
+        List<VarRef> cells = new ArrayList<VarRef>();
+        for (Binding b : captures) {
+            VarRef source = new VarRef(b.name, parent, VarRef.DECLARE);
+            List<Binding> candidates = new ArrayList<Binding>();
+            candidates.add(b);
+            source.setCandidates(candidates);
+            List<VarRef> list = b.isBoxed() ? cells : copies;
+            captureIndexes.put(b, list.size());
+            list.add(source);
+            sources.add(source);
+        }
+        copySources = copies.toArray(new VarRef[copies.size()]);
+        cellSources = cells.toArray(new VarRef[cells.size()]);
+    }
+
+    private VarRef addressFor(int name, Binding b) {
+        VarRef ref = new VarRef(name, this, VarRef.DECLARE);
+        List<Binding> candidates = new ArrayList<Binding>();
+        candidates.add(b);
+        ref.setCandidates(candidates);
+        ref.link();
+        return ref;
+    }
+
+    /**
+     * Where a binding is found from this scope, as one of the VarRef
+     * address kinds, paired with its index.
+     */
+    int kindOf(Binding b) {
+        if (b.owner == this) {
+            if (b.isBoxed()) {
+                return VarRef.CELL;
+            }
+            return tagged ? VarRef.TAGGED_SLOT : VarRef.SLOT;
+        }
+        return b.isBoxed() ? VarRef.CAPTURED_CELL : VarRef.CAPTURED;
+    }
+
+    int indexOf(Binding b) {
+        return b.owner == this ? b.index : captureIndexes.get(b);
+    }
+
+    /**
+     * A variable declared in a function scope.
+     */
+    static class Binding {
+        private int name;
+        private Scope owner;
+        private boolean captured;
+        private boolean updated;
+        private int index;
+
+        Binding(int name, Scope owner) {
+            this.name = name;
+            this.owner = owner;
+        }
+
+        /**
+         * A captured variable that can change after a closure is created
+         * must be shared through a cell rather than copied.
+         */
+        boolean isBoxed() {
+            return captured && updated;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package edu.sjsu.fwjs;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+/**
+ * The layout of an object: which slot holds each of its properties.
+ *
+ * Objects that got the same properties in the same order share a shape.
+ * Adding a property moves an object to a child shape, and each shape
+ * remembers its children, so building objects the same way always ends
+ * in the same shape.  Shapes never change once made, so a site that has
+ * seen a shape can keep the slot it found there.
+ *
+ * A shape does not copy the properties of its parent.  The shapes along
+ * a chain of transitions share one table of properties, and a shape only
+ * sees the entries below its own size.  The first child of a shape
+ * appends its property to the shared table; any other child copies the
+ * parent's part of it.  Building an object with n properties thus costs
+ * O(n) time and memory across its shapes, as long as objects that branch
+ * off a chain are rare.
+ */
+final class Shape {
+    static final Shape EMPTY = new Shape();
+
+    private final Table table;
+    private final int size;
+    private final IntMap<Shape> transitions = new IntMap<Shape>();
+
+    private Shape() {
+        this.table = new Table(8);
+        this.size = 0;
+    }
+
+    private Shape(Table table, int size) {
+        this.table = table;
+        this.size = size;
+    }
+
+    /**
+     * Gets the slot of a property.
+     *
+     * @return the slot, or -1 if objects of this shape do not have it.
+     */
+    int indexOf(int name) {
+        int index = table.indexOf(name);
+        return index < size ? index : -1;
+    }
+
+    /**
+     * Gets the shape of an object of this shape once the property is added.
+     * Objects of this shape must not have the property already.
+     */
+    synchronized Shape with(int name) {
+        Shape child = transitions.get(name);
+        if (child == null) {
+            Table t = table;
+            // Copy the table if another child already extended it.
+            if (t.count != size || t.isFull()) {
+                t = t.copy(size, 2 * (size + 1));
+            }
+            t.add(name);
+            child = new Shape(t, size + 1);
+            transitions.put(name, child);
+        }
+        return child;
+    }
+
+    /**
+     * The number of properties, which is also the next slot.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Gets the name of the property in a slot.
+     */
+    int nameAt(int index) {
+        return table.names[index];
+    }
+
+    /**
+     * The properties of a chain of shapes, in slot order, with a hash table
+     * from each name to its slot.  Entries are only ever added, by the
+     * shape whose size is the count, while it is locked.  Each entry packs
+     * the name and the slot into one long that is published with release
+     * semantics, so shapes reading the table on other threads never see
+     * half of an entry; entries past their own size are ignored anyway.
+     */
+    private static final class Table {
+        private static final VarHandle ENTRIES = MethodHandles.arrayElementVarHandle(long[].class);
+        private static final long FREE = -1L;
+
+        final int[] names;
+        private final long[] entries;
+        private final int shift;
+        volatile int count;
+
+        Table(int capacity) {
+            int buckets = Integer.highestOneBit(Math.max(capacity, 4) * 2 - 1) * 2;
+            this.names = new int[capacity];
+            this.entries = new long[buckets];
+            this.shift = 32 - Integer.numberOfTrailingZeros(buckets);
+            Arrays.fill(entries, FREE);
+        }
+
+        /**
+         * Copies the first size properties into a table that holds at
+         * least capacity.
+         */
+        Table copy(int size, int capacity) {
+            Table t = new Table(Math.max(capacity, 8));
+            for (int i = 0; i < size; i++) {
+                t.add(names[i]);
+            }
+            return t;
+        }
+
+        boolean isFull() {
+            return count == names.length;
+        }
+
+        void add(int name) {
+            int index = count;
+            names[index] = name;
+            int mask = entries.length - 1;
+            int i = bucket(name);
+            while (entries[i] != FREE) {
+                i = (i + 1) & mask;
+            }
+            ENTRIES.setRelease(entries, i, (long) name << 32 | index);
+            count = index + 1;
+        }
+
+        /**
+         * @return the slot of the name, or -1 if the table does not have it.
+         */
+        int indexOf(int name) {
+            int mask = entries.length - 1;
+            for (int i = bucket(name); ; i = (i + 1) & mask) {
+                long e = (long) ENTRIES.getAcquire(entries, i);
+                if (e == FREE) {
+                    return -1;
+                }
+                if ((int) (e >>> 32) == name) {
+                    return (int) e;
+                }
+            }
+        }
+
+        private int bucket(int name) {
+            return (name * 0x9E3779B9) >>> shift;
+        }
+    }
+}
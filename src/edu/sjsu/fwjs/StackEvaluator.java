@@ -0,0 +1,333 @@
+package edu.sjsu.fwjs;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Evaluates an expression with an explicit stack of continuations on the
+ * heap, instead of on the Java stack.  Deep recursion in FWJS, such as a
+ * non-tail-recursive function called a million levels deep, is then
+ * bounded only by the heap.
+ *
+ * The evaluator gives the same values as Expression.evaluate.  Control
+ * flow, calls and CompoundExprs are walked here; the rest, which do not
+ * evaluate other expressions, are evaluated directly.  Builtins that call
+ * closures still call them through ClosureVal.apply, on the Java stack.
+ *
+ * One difference remains: an operation on a value of the wrong type fails
+ * only once all of its operands are evaluated.  Evaluate may fail sooner,
+ * as when indexing something that is not an array, or when a specialized
+ * binary node gets an operand it cannot handle.
+ *
+ * Each step allocates continuations and skips the typed evaluation of
+ * specialized nodes, so it is several times slower than evaluate.
+ * Interpreter only uses it when the fwjs.stackEvaluator system property
+ * is true.
+ */
+final class StackEvaluator {
+    private Cont[] stack = new Cont[64];
+    private int top;
+
+    // The expression to evaluate next in env, or null once value is ready
+    // for the continuation on top of the stack.
+    private Expression expr;
+    private Environment env;
+    private Value value;
+
+    private StackEvaluator() {
+    }
+
+    /**
+     * Evaluates the expression in the environment.
+     */
+    static Value evaluate(Expression e, Environment env) {
+        return new StackEvaluator().run(e, env);
+    }
+
+    private Value run(Expression e, Environment env) {
+        this.expr = e;
+        this.env = env;
+        try {
+            while (true) {
+                if (expr != null) {
+                    Expression next = expr;
+                    expr = null;
+                    step(next);
+                } else if (top == 0) {
+                    return value;
+                } else {
+                    pop().resume(this, value);
+                }
+            }
+        } catch (RuntimeException | Error ex) {
+            // Release the frames of the calls being thrown out of.
+            while (top > 0) {
+                pop().abort();
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Starts evaluating an expression, either setting value or pushing
+     * continuations and setting the next expression.
+     */
+    private void step(Expression e) {
+        if (e instanceof CompoundExpr) {
+            CompoundExpr c = (CompoundExpr) e;
+            Expression[] operands = c.getOperands();
+            if (operands.length == 0) {
+                value = c.combine(new Value[0], env);
+                return;
+            }
+            push(new Operands(c, operands, env));
+            expr = operands[0];
+        } else if (e instanceof IfExpr) {
+            push(new Branch((IfExpr) e, env));
+            expr = ((IfExpr) e).getCond();
+        } else if (e instanceof WhileExpr) {
+            push(new Loop((WhileExpr) e, env));
+            expr = ((WhileExpr) e).getCond();
+        } else if (e instanceof SeqExpr) {
+            push(new Then(((SeqExpr) e).getSecond(), env));
+            expr = ((SeqExpr) e).getFirst();
+        } else if (e instanceof BlockExpr) {
+            Expression[] body = ((BlockExpr) e).getBody();
+            if (body.length > 1) {
+                push(new Block(body, env));
+            }
+            expr = body[0];
+        } else if (e instanceof FunctionAppExpr) {
+            startCall((FunctionAppExpr) e, false);
+        } else if (e instanceof TailCallExpr) {
+            startCall(((TailCallExpr) e).getCall(), true);
+        } else {
+            value = e.evaluate(env);
+        }
+    }
+
+    private void startCall(FunctionAppExpr call, boolean tail) {
+        push(new Call(call.getArgs(), env, tail));
+        expr = call.getFunction();
+    }
+
+    /**
+     * Enters a closure and evaluates its body, leaving a Return to make
+     * the tail call the body may give.
+     */
+    private void enter(ClosureVal c, List<Value> args, Environment callerEnv) {
+        Environment frame = c.enter(args, callerEnv);
+        push(new Return(c, callerEnv));
+        env = frame;
+        expr = c.getBody();
+    }
+
+    private void push(Cont c) {
+        if (top == stack.length) {
+            Cont[] bigger = new Cont[stack.length * 2];
+            System.arraycopy(stack, 0, bigger, 0, stack.length);
+            stack = bigger;
+        }
+        stack[top++] = c;
+    }
+
+    private Cont pop() {
+        Cont c = stack[--top];
+        stack[top] = null;
+        return c;
+    }
+
+    /**
+     * What to do with the value of an expression once it is evaluated.
+     */
+    private abstract static class Cont {
+        abstract void resume(StackEvaluator ev, Value v);
+
+        /**
+         * Called instead of resume when an exception is thrown through it.
+         */
+        void abort() {
+        }
+    }
+
+    /**
+     * Collects the operands of a CompoundExpr, in order.
+     */
+    private static final class Operands extends Cont {
+        private final CompoundExpr expr;
+        private final Expression[] operands;
+        private final Value[] values;
+        private final Environment env;
+        private int next;
+
+        Operands(CompoundExpr expr, Expression[] operands, Environment env) {
+            this.expr = expr;
+            this.operands = operands;
+            this.values = new Value[operands.length];
+            this.env = env;
+        }
+
+        void resume(StackEvaluator ev, Value v) {
+            values[next++] = v;
+            if (next < operands.length) {
+                ev.push(this);
+                ev.env = env;
+                ev.expr = operands[next];
+            } else {
+                ev.value = expr.combine(values, env);
+            }
+        }
+    }
+
+    private static final class Branch extends Cont {
+        private final IfExpr expr;
+        private final Environment env;
+
+        Branch(IfExpr expr, Environment env) {
+            this.expr = expr;
+            this.env = env;
+        }
+
+        void resume(StackEvaluator ev, Value v) {
+            ev.env = env;
+            ev.expr = expr.branch(((BoolVal) v).toBoolean());
+        }
+    }
+
+    /**
+     * Alternates between a while loop's condition and its body.  Like
+     * WhileExpr.evaluate, the loop's value is that of the last body run,
+     * or null.
+     */
+    private static final class Loop extends Cont {
+        private final WhileExpr expr;
+        private final Environment env;
+        private boolean inBody;
+        private Value last;
+
+        Loop(WhileExpr expr, Environment env) {
+            this.expr = expr;
+            this.env = env;
+        }
+
+        void resume(StackEvaluator ev, Value v) {
+            if (inBody) {
+                last = v;
+            } else if (!((BoolVal) v).toBoolean()) {
+                ev.value = last;
+                return;
+            }
+            inBody = !inBody;
+            ev.push(this);
+            ev.env = env;
+            ev.expr = inBody ? expr.getBody() : expr.getCond();
+        }
+    }
+
+    private static final class Then extends Cont {
+        private final Expression next;
+        private final Environment env;
+
+        Then(Expression next, Environment env) {
+            this.next = next;
+            this.env = env;
+        }
+
+        void resume(StackEvaluator ev, Value v) {
+            ev.env = env;
+            ev.expr = next;
+        }
+    }
+
+    /**
+     * Runs the statements of a block after the first.  The last one is
+     * evaluated without a continuation, so that its value, which may be a
+     * tail call, goes straight to the block's own continuation.
+     */
+    private static final class Block extends Cont {
+        private final Expression[] body;
+        private final Environment env;
+        private int next = 1;
+
+        Block(Expression[] body, Environment env) {
+            this.body = body;
+            this.env = env;
+        }
+
+        void resume(StackEvaluator ev, Value v) {
+            Expression e = body[next++];
+            if (next < body.length) {
+                ev.push(this);
+            }
+            ev.env = env;
+            ev.expr = e;
+        }
+    }
+
+    /**
+     * Collects the function and then the arguments of a call, and makes
+     * it.  Like FunctionAppExpr, the function is checked before the
+     * arguments are evaluated.
+     */
+    private static final class Call extends Cont {
+        private final List<Expression> args;
+        private final Environment env;
+        private final boolean tail;
+        private FunctionVal fn;
+        private List<Value> argVals;
+
+        Call(List<Expression> args, Environment env, boolean tail) {
+            this.args = args;
+            this.env = env;
+            this.tail = tail;
+        }
+
+        void resume(StackEvaluator ev, Value v) {
+            if (argVals == null) {
+                fn = (FunctionVal) v;
+                argVals = new ArrayList<Value>(args.size());
+            } else {
+                argVals.add(v);
+            }
+            if (argVals.size() < args.size()) {
+                ev.push(this);
+                ev.env = env;
+                ev.expr = args.get(argVals.size());
+            } else if (!(fn instanceof ClosureVal)) {
+                ev.value = fn.apply(argVals, env);
+            } else if (tail) {
+                ev.value = new TailCall((ClosureVal) fn, argVals);
+            } else {
+                ev.enter((ClosureVal) fn, argVals, env);
+            }
+        }
+    }
+
+    /**
+     * Leaves a closure's frame once its body is evaluated, making the
+     * tail call the body gave, if any, as ClosureVal.apply does.
+     */
+    private static final class Return extends Cont {
+        private final ClosureVal fn;
+        private final Environment callerEnv;
+
+        Return(ClosureVal fn, Environment callerEnv) {
+            this.fn = fn;
+            this.callerEnv = callerEnv;
+        }
+
+        void resume(StackEvaluator ev, Value v) {
+            fn.exit(callerEnv);
+            if (v instanceof TailCall) {
+                TailCall tail = (TailCall) v;
+                ev.enter(tail.getFunction(), tail.getArgs(), callerEnv);
+            } else {
+                ev.value = v;
+            }
+        }
+
+        void abort() {
+            fn.exit(callerEnv);
+        }
+    }
+}
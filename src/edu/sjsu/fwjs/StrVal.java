@@ -0,0 +1,154 @@
+package edu.sjsu.fwjs;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Strings.
+ *
+ * Concatenating strings does not copy them: the result is a rope that
+ * only refers to its two halves, and the characters are joined the first
+ * time the string is needed as a whole, for instance to print or compare
+ * it.  Building a string by appending to it in a loop thus costs O(1) per
+ * step.  Short results are joined right away, since copying a few
+ * characters is cheaper than another node.
+ *
+ * Literals are interned, so equal literals are the same StrVal and
+ * compare by identity.
+ */
+class StrVal implements Value {
+    private static final int SHORT = 16;
+    private static final ConcurrentHashMap<String, StrVal> LITERALS =
+            new ConcurrentHashMap<String, StrVal>();
+
+    // Either the whole String, or the Concat of two StrVals not joined yet.
+    // Both are immutable, so threads sharing a rope always see one of them.
+    private volatile Object content;
+    private final int length;
+    private int hash;
+
+    public StrVal(String s) {
+        this.content = s;
+        this.length = s.length();
+    }
+
+    private StrVal(StrVal left, StrVal right) {
+        this.content = new Concat(left, right);
+        this.length = left.length + right.length;
+    }
+
+    /**
+     * Gets the shared StrVal for a string literal.
+     */
+    public static StrVal literal(String s) {
+        StrVal v = LITERALS.get(s);
+        if (v == null) {
+            v = new StrVal(s.intern());
+            StrVal old = LITERALS.putIfAbsent(s, v);
+            if (old != null) {
+                v = old;
+            }
+        }
+        return v;
+    }
+
+    /**
+     * Gets a value as a string, as the + operator does.  A Java null, the
+     * value of a while loop whose body never ran, reads as null.
+     */
+    static StrVal of(Value v) {
+        if (v instanceof StrVal) {
+            return (StrVal) v;
+        }
+        if (v == null) {
+            v = NullVal.NULL;
+        }
+        return new StrVal(v.toString());
+    }
+
+    /**
+     * Concatenates two strings.
+     */
+    static StrVal concat(StrVal left, StrVal right) {
+        if (left.length == 0) {
+            return right;
+        }
+        if (right.length == 0) {
+            return left;
+        }
+        if (left.length + right.length <= SHORT) {
+            return new StrVal(left.toString() + right.toString());
+        }
+        return new StrVal(left, right);
+    }
+
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public boolean equals(Object that) {
+        if (this == that) return true;
+        if (!(that instanceof StrVal)) return false;
+        StrVal other = (StrVal) that;
+        if (this.length != other.length || this.hashCode() != other.hashCode()) return false;
+        return this.toString().equals(other.toString());
+    }
+
+    @Override
+    public int hashCode() {
+        int h = hash;
+        if (h == 0) {
+            h = toString().hashCode();
+            hash = h;
+        }
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        Object c = content;
+        if (c instanceof String) {
+            return (String) c;
+        }
+        String s = flatten((Concat) c);
+        content = s;
+        return s;
+    }
+
+    /**
+     * Joins the characters of a rope.  Ropes built in a loop are as deep as
+     * the loop is long, so this walks them with an explicit stack.
+     */
+    private String flatten(Concat root) {
+        char[] chars = new char[length];
+        int pos = 0;
+        ArrayDeque<StrVal> todo = new ArrayDeque<StrVal>();
+        todo.push(root.right);
+        todo.push(root.left);
+        while (!todo.isEmpty()) {
+            Object c = todo.pop().content;
+            if (c instanceof String) {
+                String s = (String) c;
+                s.getChars(0, s.length(), chars, pos);
+                pos += s.length();
+            }
+            else {
+                Concat node = (Concat) c;
+                todo.push(node.right);
+                todo.push(node.left);
+            }
+        }
+        return new String(chars);
+    }
+
+    private static final class Concat {
+        final StrVal left;
+        final StrVal right;
+
+        Concat(StrVal left, StrVal right) {
+            this.left = left;
+            this.right = right;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package edu.sjsu.fwjs;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Process-wide symbol table for FWJS identifiers.
+ *
+ * Each identifier is interned once, when the expression tree is built,
+ * and from then on is represented by a small int ID.  Environments are
+ * keyed by these IDs, so variable access never hashes or compares strings.
+ */
+final class Symbols {
+    private static final Map<String, Integer> ids = new HashMap<String, Integer>();
+    private static final List<String> names = new ArrayList<String>();
+
+    private Symbols() {
+    }
+
+    /**
+     * Gets the ID of an identifier, assigning the next free one if it
+     * has not been seen before.  IDs start at 0.
+     */
+    static synchronized int intern(String name) {
+        Integer id = ids.get(name);
+        if (id == null) {
+            id = names.size();
+            ids.put(name, id);
+            names.add(name);
+        }
+        return id;
+    }
+
+    /**
+     * Gets the identifier with the given ID.
+     */
+    static synchronized String name(int id) {
+        return names.get(id);
+    }
+}
@@ -0,0 +1,90 @@
+package edu.sjsu.fwjs;
+
+/**
+ * Values packed into a long, for frames that keep their slots in a long[].
+ *
+ * The low three bits of a word hold its tag.  An int is kept in the upper
+ * 32 bits, so reading or writing one does not allocate.  Any other value,
+ * such as a closure, is a reference: its word only holds the tag, and the
+ * value itself is kept at the same index of a side table of Values.
+ * A word of zero is a slot whose variable has not been declared yet, so
+ * a new or cleared long[] holds no variables.
+ */
+final class Tagged {
+    static final long UNDECLARED = 0;
+
+    private static final int TAG_MASK = 7;
+    private static final int INT = 1;
+    private static final int BOOL = 2;
+    private static final int NULL = 3;
+
+    static final int REF = 4;
+    static final long TRUE = (1L << 32) | BOOL;
+    static final long FALSE = BOOL;
+    static final long NULL_WORD = NULL;
+
+    private Tagged() {
+    }
+
+    static long ofInt(int i) {
+        return ((long) i << 32) | INT;
+    }
+
+    static long ofBoolean(boolean b) {
+        return b ? TRUE : FALSE;
+    }
+
+    static boolean isInt(long word) {
+        return ((int) word & TAG_MASK) == INT;
+    }
+
+    static boolean isBoolean(long word) {
+        return ((int) word & TAG_MASK) == BOOL;
+    }
+
+    static int toInt(long word) {
+        return (int) (word >> 32);
+    }
+
+    static boolean toBoolean(long word) {
+        return word == TRUE;
+    }
+
+    /**
+     * Packs a value.
+     *
+     * @return the word, or REF if the value must go in the side table.
+     */
+    static long encode(Value v) {
+        if (v instanceof IntVal) {
+            return ofInt(((IntVal) v).toInt());
+        }
+        if (v instanceof BoolVal) {
+            return ofBoolean(((BoolVal) v).toBoolean());
+        }
+        if (v instanceof NullVal) {
+            return NULL_WORD;
+        }
+        return REF;
+    }
+
+    /**
+     * Unpacks a word, given the side table entry for references.
+     *
+     * @return the value, or null if the slot has not been declared yet.
+     */
+    static Value decode(long word, Value ref) {
+        switch ((int) word & TAG_MASK) {
+            case INT:
+                return IntVal.of(toInt(word));
+            case BOOL:
+                return BoolVal.of(toBoolean(word));
+            case NULL:
+                return NullVal.NULL;
+            case REF:
+                return ref;
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package edu.sjsu.fwjs;
+
+/**
+ * Thrown by Expression.evaluateInt when the number an expression computes
+ * does not fit in an int.  It carries the number as a Value, so that the
+ * caller can carry on with the promoted value instead of evaluating the
+ * expression again.
+ *
+ * Overflow is rare, so the int methods stay free of promotion checks
+ * other than this throw.  The exception has no stack trace, which keeps
+ * throwing it cheap.
+ */
+class UnexpectedResultException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    // Values are not serializable, and the exception never leaves the
+    // evaluation that throws it.
+    private final transient Value result;
+
+    UnexpectedResultException(Value result) {
+        super(null, null, false, false);
+        this.result = result;
+    }
+
+    Value getResult() {
+        return result;
+    }
+}
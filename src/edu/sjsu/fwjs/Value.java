@@ -1,80 +1,143 @@
 package edu.sjsu.fwjs;
 
+import java.math.BigInteger;
 import java.util.List;
 
 /**
  * Values in FWJS.
  * Evaluating a FWJS expression should return a FWJS value.
+ *
+ * Any value can be a key of a MapVal or DictVal, so every implementation
+ * keeps hashCode consistent with equals.  Numbers, booleans, null, strings
+ * and persistent collections compare by content; closures and mutable
+ * values such as arrays and objects only equal themselves.
  */
 public interface Value {}
 
 //NOTE: Using package access so that all implementations of Value
-//can be included in the same file.
+//can be included in the same file.  The values that most other files
+//use (BoolVal, IntVal, NullVal, FunctionVal and BuiltinVal) have files
+//of their own, so that using them elsewhere stays warning-free.
 
 /**
- * Boolean values.
+ * Integers that do not fit in an int.  See Numbers.
  */
-class BoolVal implements Value {
-    private boolean boolVal;
-    public BoolVal(boolean b) { this.boolVal = b; }
-    public boolean toBoolean() { return this.boolVal; }
+class LongVal implements Value {
+    private long l;
+    public LongVal(long l) { this.l = l; }
+    public long toLong() { return this.l; }
     @Override
     public boolean equals(Object that) {
-        if (!(that instanceof BoolVal)) return false;
-        return this.boolVal == ((BoolVal) that).boolVal;
+        if (!(that instanceof LongVal)) return false;
+        return this.l == ((LongVal) that).l;
+    }
+    @Override
+    public int hashCode() {
+        return Long.hashCode(this.l);
     }
     @Override
     public String toString() {
-        return "" + this.boolVal;
+        return "" + this.l;
     }
 }
 
 /**
- * Numbers.  Only integers are supported.
+ * Integers that do not fit in a long.  See Numbers.
  */
-class IntVal implements Value {
-    private int i;
-    public IntVal(int i) { this.i = i; }
-    public int toInt() { return this.i; }
+class BigIntVal implements Value {
+    private BigInteger b;
+    public BigIntVal(BigInteger b) { this.b = b; }
+    public BigInteger toBigInteger() { return this.b; }
     @Override
     public boolean equals(Object that) {
-        if (!(that instanceof IntVal)) return false;
-        return this.i == ((IntVal) that).i;
+        if (!(that instanceof BigIntVal)) return false;
+        return this.b.equals(((BigIntVal) that).b);
+    }
+    @Override
+    public int hashCode() {
+        return this.b.hashCode();
     }
     @Override
     public String toString() {
-        return "" + this.i;
+        return this.b.toString();
     }
 }
 
-class NullVal implements Value {
+/**
+ * Double-precision floating-point numbers.
+ */
+class DoubleVal implements Value {
+    private double d;
+    public DoubleVal(double d) { this.d = d; }
+    public double toDouble() { return this.d; }
     @Override
     public boolean equals(Object that) {
-        return (that instanceof NullVal);
+        if (!(that instanceof DoubleVal)) return false;
+        return Double.compare(this.d, ((DoubleVal) that).d) == 0;
+    }
+    @Override
+    public int hashCode() {
+        return Double.hashCode(this.d);
     }
     @Override
     public String toString() {
-        return "null";
+        return "" + this.d;
+    }
+}
+
+/**
+ * A call left for ClosureVal.apply to make, returned by a TailCallExpr.
+ * It never escapes as the value of an expression.
+ */
+final class TailCall implements Value {
+    private ClosureVal function;
+    private List<Value> args;
+    public TailCall(ClosureVal function, List<Value> args) {
+        this.function = function;
+        this.args = args;
     }
+    public ClosureVal getFunction() { return this.function; }
+    public List<Value> getArgs() { return this.args; }
 }
 
 /**
  * A closure.
  * Note that a closure remembers its surrounding scope.
  */
-class ClosureVal implements Value {
+final class ClosureVal implements FunctionVal {
     private List<String> params;
+    private int[] paramIds;
     private Expression body;
     private Environment outerEnv;
+    private Scope scope;
+    private Value[] captured;
+    private Cell[] capturedCells;
     /**
      * The environment is the environment where the function was created.
      * This design is what makes this expression a closure.
      */
-    public ClosureVal(List<String> params, Expression body, Environment env) {
+    public ClosureVal(List<String> params, int[] paramIds, Expression body, Environment env) {
         this.params = params;
+        this.paramIds = paramIds;
         this.body = body;
         this.outerEnv = env;
     }
+    /**
+     * A closure over a resolved function body.  Instead of its whole
+     * surrounding environment, it only keeps the variables its body uses:
+     * copies of those that never change, and cells shared with the
+     * declaring frame for the others.  Its frames link straight to the
+     * global environment it was created in.
+     */
+    public ClosureVal(List<String> params, Expression body, Scope scope,
+                      Value[] captured, Cell[] capturedCells, Environment global) {
+        this.params = params;
+        this.body = body;
+        this.outerEnv = global;
+        this.scope = scope;
+        this.captured = captured;
+        this.capturedCells = capturedCells;
+    }
     public String toString() {
         String s = "function(";
         String sep = "";
@@ -89,13 +152,88 @@ class ClosureVal implements Value {
      * To apply a closure, first create a new local environment, with an outer scope
      * of the environment where the function was created. Each parameter should
      * be bound to its matching argument and added to the new local environment.
+     *
+     * Closures over resolved functions only keep the global environment
+     * they were created in, which their frames link to.  A function created
+     * in the globals of an environment that was later forked, like one
+     * declared at the top level, runs against the fork's globals when
+     * called from the fork, as given by Environment.globalFor.
+     *
+     * A body whose value is a call in tail position returns a TailCall
+     * instead of making the call.  The call is then made here, after the
+     * body's frame is gone, so a chain of tail calls runs in a loop on a
+     * constant Java stack.
      */
-    public Value apply(List<Value> argVals) {
-        Environment localEnv = new Environment(this.outerEnv);
+    public Value apply(List<Value> argVals, Environment callerEnv) {
+        Value result = call(argVals, callerEnv);
+        while (result instanceof TailCall) {
+            TailCall tail = (TailCall) result;
+            result = tail.getFunction().call(tail.getArgs(), callerEnv);
+        }
+        return result;
+    }
+    /**
+     * Runs the body once, without making the tail call it may return.
+     */
+    private Value call(List<Value> argVals, Environment callerEnv) {
+        Environment frame = enter(argVals, callerEnv);
+        try {
+            return body.evaluate(frame);
+        } finally {
+            exit(callerEnv);
+        }
+    }
+    /**
+     * Makes the environment for a call, with the parameters bound to the
+     * arguments.  It must be released with exit once the call returns.
+     *
+     * Resolved functions run in slot-based frames.  Functions that no
+     * closure captures from reuse a frame from the thread's frame stack.
+     */
+    Environment enter(List<Value> argVals, Environment callerEnv) {
+        if (scope == null) {
+            Environment outer = this.outerEnv;
+            if (outer == outer.getGlobal()) {
+                outer = callerEnv.globalFor(outer);
+            }
+            Environment localEnv = new Environment(outer);
+            for (int i = 0; i < argVals.size(); i++) {
+                localEnv.createVar(paramIds[i], argVals.get(i));
+            }
+            return localEnv;
+        }
+        Environment global = callerEnv.globalFor(outerEnv);
+        FrameStack stack = callerEnv.getFrameStack();
+        if (!scope.isPoolable()) {
+            Environment frame = new Environment(global, scope,
+                    captured, capturedCells, stack);
+            bindParams(frame, argVals);
+            return frame;
+        }
+        Environment frame = stack.push(global, scope, captured, capturedCells);
+        try {
+            bindParams(frame, argVals);
+        } catch (RuntimeException e) {
+            stack.pop();
+            throw e;
+        }
+        return frame;
+    }
+    /**
+     * Releases the environment of a call made from callerEnv.
+     */
+    void exit(Environment callerEnv) {
+        if (scope != null && scope.isPoolable()) {
+            callerEnv.getFrameStack().pop();
+        }
+    }
+    Expression getBody() {
+        return this.body;
+    }
+    private void bindParams(Environment frame, List<Value> argVals) {
+        VarRef[] paramRefs = scope.getParams();
         for (int i = 0; i < argVals.size(); i++) {
-            localEnv.createVar(params.get(i), argVals.get(i));
+            paramRefs[i].declare(frame, argVals.get(i));
         }
-        Value val = body.evaluate(localEnv);
-        return val;
     }
 }
@@ -0,0 +1,316 @@
+package edu.sjsu.fwjs;
+
+import java.util.List;
+
+/**
+ * A resolved reference to a variable.
+ *
+ * Holds the address of every binding that may hold the variable,
+ * innermost first.  An address is either a slot or a cell of the current
+ * frame, or a copied value or shared cell captured by the running closure.
+ * A binding that is still null has not been declared yet, in which case
+ * the search continues outward and finally ends in the global environment,
+ * where the variable's cell is cached by the reference.
+ */
+class VarRef {
+    // Kinds of references
+    static final int LOAD = 0;
+    static final int STORE = 1;
+    static final int DECLARE = 2;
+
+    // Kinds of addresses
+    static final int SLOT = 0;
+    static final int CELL = 1;
+    static final int CAPTURED = 2;
+    static final int CAPTURED_CELL = 3;
+    static final int TAGGED_SLOT = 4;
+
+    private int name;
+    private int kind;
+    private Scope scope;
+    private List<Scope.Binding> candidates;
+    private int[] kinds;
+    private int[] indexes;
+    // The kind and index of the only candidate if it is a frame slot, or
+    // -1.  Such a variable is read and written without the loop over kinds.
+    private int single = -1;
+    private int slot;
+    private GlobalRef global;
+
+    VarRef(int name, Scope scope, int kind) {
+        this.name = name;
+        this.scope = scope;
+        this.kind = kind;
+        if (kind != DECLARE) {
+            this.global = new GlobalRef(name);
+        }
+    }
+
+    int getName() {
+        return name;
+    }
+
+    int getKind() {
+        return kind;
+    }
+
+    Scope getScope() {
+        return scope;
+    }
+
+    void setCandidates(List<Scope.Binding> candidates) {
+        this.candidates = candidates;
+    }
+
+    /**
+     * Computes the address of each candidate once every frame has been laid out.
+     */
+    void link() {
+        kinds = new int[candidates.size()];
+        indexes = new int[candidates.size()];
+        for (int i = 0; i < kinds.length; i++) {
+            kinds[i] = scope.kindOf(candidates.get(i));
+            indexes[i] = scope.indexOf(candidates.get(i));
+        }
+        if (kinds.length == 1 && (kinds[0] == SLOT || kinds[0] == TAGGED_SLOT)) {
+            single = kinds[0];
+            slot = indexes[0];
+        }
+        candidates = null;
+    }
+
+    /**
+     * Reads the variable, returning a NullVal if it is not defined anywhere.
+     */
+    Value load(Environment env) {
+        if (single == SLOT) {
+            Value v = env.getSlot(slot);
+            if (v != null) {
+                return v;
+            }
+        } else if (single == TAGGED_SLOT) {
+            Value v = env.getTaggedSlot(slot);
+            if (v != null) {
+                return v;
+            }
+        } else {
+            for (int i = 0; i < kinds.length; i++) {
+                Value v = get(env, i);
+                if (v != null) {
+                    return v;
+                }
+            }
+        }
+        return global.load(env.getGlobal());
+    }
+
+    /**
+     * Reads a variable that must be a number.  A number in a tagged slot
+     * is read without boxing it.
+     */
+    int loadInt(Environment env) {
+        if (single == SLOT) {
+            Value v = env.getSlot(slot);
+            if (v instanceof IntVal) {
+                return ((IntVal) v).toInt();
+            }
+        } else if (kinds.length > 0 && kinds[0] == TAGGED_SLOT) {
+            long word = env.getWord(indexes[0]);
+            if (Tagged.isInt(word)) {
+                return Tagged.toInt(word);
+            }
+        }
+        return Numbers.expectInt(load(env));
+    }
+
+    /**
+     * Reads a variable that must be a boolean.
+     */
+    boolean loadBoolean(Environment env) {
+        if (kinds.length > 0 && kinds[0] == TAGGED_SLOT) {
+            long word = env.getWord(indexes[0]);
+            if (Tagged.isBoolean(word)) {
+                return Tagged.toBoolean(word);
+            }
+        }
+        return ((BoolVal) load(env)).toBoolean();
+    }
+
+    /**
+     * Updates the variable in the innermost binding that has been declared.
+     * If there is none, the variable is set in the global environment.
+     */
+    void store(Environment env, Value v) {
+        if (single == SLOT) {
+            if (env.getSlot(slot) != null) {
+                env.setSlot(slot, v);
+                return;
+            }
+        } else if (single == TAGGED_SLOT) {
+            if (env.getWord(slot) != Tagged.UNDECLARED) {
+                env.setTaggedSlot(slot, v);
+                return;
+            }
+        } else {
+            for (int i = 0; i < kinds.length; i++) {
+                if (update(env, i, v)) {
+                    return;
+                }
+            }
+        }
+        global.store(env.getGlobal(), v);
+    }
+
+    /**
+     * Whether the variable is in a single tagged slot, where storeInt and
+     * declareInt do not box the number.
+     */
+    boolean isTagged() {
+        return single == TAGGED_SLOT;
+    }
+
+    /**
+     * Updates the variable with a number, as store does.
+     */
+    void storeInt(Environment env, int v) {
+        if (single == TAGGED_SLOT && env.getWord(slot) != Tagged.UNDECLARED) {
+            env.setTaggedInt(slot, v);
+        }
+        else store(env, IntVal.of(v));
+    }
+
+    /**
+     * Declares the variable with a number, as declare does.
+     */
+    void declareInt(Environment env, int v) {
+        if (single != TAGGED_SLOT) {
+            declare(env, IntVal.of(v));
+        }
+        else if (env.getWord(slot) == Tagged.UNDECLARED) {
+            env.setTaggedInt(slot, v);
+        }
+        else throw new RuntimeException("Variable already defined");
+    }
+
+    /**
+     * Declares the variable in the current frame.
+     * Like Environment.createVar, a RuntimeException is thrown if it is
+     * already defined.
+     */
+    void declare(Environment env, Value v) {
+        if (!isDeclared(env, 0)) {
+            set(env, 0, v);
+        }
+        else throw new RuntimeException("Variable already defined");
+    }
+
+    /**
+     * Gets the value at the first address, or null if it is not declared.
+     */
+    Value get(Environment env) {
+        return get(env, 0);
+    }
+
+    /**
+     * Sets the value at the first address.
+     */
+    void set(Environment env, Value v) {
+        set(env, 0, v);
+    }
+
+    /**
+     * Gets the cell at the first address, which must hold a shared variable.
+     */
+    Cell getCell(Environment env) {
+        return kinds[0] == CELL ? env.getCell(indexes[0]) : env.getCapturedCell(indexes[0]);
+    }
+
+    private Value get(Environment env, int i) {
+        switch (kinds[i]) {
+            case SLOT:
+                return env.getSlot(indexes[i]);
+            case CELL:
+                return env.getCell(indexes[i]).get();
+            case CAPTURED:
+                return env.getCaptured(indexes[i]);
+            case TAGGED_SLOT:
+                return env.getTaggedSlot(indexes[i]);
+            default:
+                return env.getCapturedCell(indexes[i]).get();
+        }
+    }
+
+    /**
+     * Whether the binding at an address has been declared.  Unlike get,
+     * it does not box the value of a tagged slot.
+     */
+    private boolean isDeclared(Environment env, int i) {
+        if (kinds[i] == TAGGED_SLOT) {
+            return env.getWord(indexes[i]) != Tagged.UNDECLARED;
+        }
+        return get(env, i) != null;
+    }
+
+    /**
+     * Sets the value at an address if it has been declared, looking the
+     * binding up only once.
+     *
+     * @return false if the binding has not been declared.
+     */
+    private boolean update(Environment env, int i, Value v) {
+        int index = indexes[i];
+        switch (kinds[i]) {
+            case SLOT:
+                if (env.getSlot(index) == null) {
+                    return false;
+                }
+                env.setSlot(index, v);
+                return true;
+            case CELL:
+                return update(env.getCell(index), v);
+            case CAPTURED:
+                if (env.getCaptured(index) == null) {
+                    return false;
+                }
+                // Only variables that are never updated are copied.
+                throw new IllegalStateException("Cannot update copied variable "
+                        + Symbols.name(name));
+            case TAGGED_SLOT:
+                if (env.getWord(index) == Tagged.UNDECLARED) {
+                    return false;
+                }
+                env.setTaggedSlot(index, v);
+                return true;
+            default:
+                return update(env.getCapturedCell(index), v);
+        }
+    }
+
+    private static boolean update(Cell cell, Value v) {
+        if (cell.get() == null) {
+            return false;
+        }
+        cell.set(v);
+        return true;
+    }
+
+    private void set(Environment env, int i, Value v) {
+        switch (kinds[i]) {
+            case SLOT:
+                env.setSlot(indexes[i], v);
+                break;
+            case CELL:
+                env.getCell(indexes[i]).set(v);
+                break;
+            case CAPTURED:
+                // Only variables that are never updated are copied.
+                throw new IllegalStateException("Cannot update copied variable "
+                        + Symbols.name(name));
+            case TAGGED_SLOT:
+                env.setTaggedSlot(indexes[i], v);
+                break;
+            default:
+                env.getCapturedCell(indexes[i]).set(v);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package edu.sjsu.fwjs;
+
+import java.util.Arrays;
+
+/**
+ * Persistent vectors.
+ *
+ * A vector never changes: appending or updating an element gives a new
+ * vector that shares all but O(log32 n) of its nodes with the old one, so
+ * every version stays valid and can be shared between threads freely.
+ *
+ * The elements are kept in a trie of 32-way nodes whose leaves hold 32
+ * elements each, except for the last up to 32 elements, which are kept
+ * in a separate tail so that appending usually only copies the tail.
+ */
+final class VectorVal implements Value {
+    private static final int BITS = 5;
+    private static final int WIDTH = 1 << BITS;
+    private static final int MASK = WIDTH - 1;
+
+    static final VectorVal EMPTY = new VectorVal(0, BITS, new Object[WIDTH], new Value[0]);
+
+    private final int count;
+    private final int shift;
+    private final Object[] root;
+    private final Value[] tail;
+    // Computed on first use; the vector never changes.  A hash of 0 is
+    // recorded in hashIsZero, so that it is not computed again.
+    private int hash;
+    private boolean hashIsZero;
+
+    private VectorVal(int count, int shift, Object[] root, Value[] tail) {
+        this.count = count;
+        this.shift = shift;
+        this.root = root;
+        this.tail = tail;
+    }
+
+    public int length() {
+        return count;
+    }
+
+    /**
+     * Gets an element, or null if the index is out of bounds.
+     */
+    public Value get(int i) {
+        if (i < 0 || i >= count) {
+            return NullVal.NULL;
+        }
+        if (i >= tailOffset()) {
+            return tail[i & MASK];
+        }
+        Object[] node = root;
+        for (int level = shift; level > 0; level -= BITS) {
+            node = (Object[]) node[(i >>> level) & MASK];
+        }
+        return (Value) node[i & MASK];
+    }
+
+    /**
+     * Gets a vector with the element added at the end.
+     */
+    public VectorVal append(Value v) {
+        if (count - tailOffset() < WIDTH) {
+            Value[] newTail = Arrays.copyOf(tail, tail.length + 1);
+            newTail[tail.length] = v;
+            return new VectorVal(count + 1, shift, root, newTail);
+        }
+        // The tail is full, so it moves into the trie.
+        Object[] newRoot;
+        int newShift = shift;
+        if ((count >>> BITS) > (1 << shift)) {
+            // The trie is full as well and gets a level.
+            newRoot = new Object[WIDTH];
+            newRoot[0] = root;
+            newRoot[1] = newPath(shift, tail);
+            newShift += BITS;
+        }
+        else newRoot = pushTail(shift, root, tail);
+        return new VectorVal(count + 1, newShift, newRoot, new Value[] {v});
+    }
+
+    /**
+     * Gets a vector with an element replaced.  The index may be the length
+     * of the vector, in which case the element is appended.
+     */
+    public VectorVal update(int i, Value v) {
+        if (i == count) {
+            return append(v);
+        }
+        if (i < 0 || i > count) {
+            throw new RuntimeException("Vector index " + i + " out of bounds for length " + count);
+        }
+        if (i >= tailOffset()) {
+            Value[] newTail = tail.clone();
+            newTail[i & MASK] = v;
+            return new VectorVal(count, shift, root, newTail);
+        }
+        return new VectorVal(count, shift, update(shift, root, i, v), tail);
+    }
+
+    @Override
+    public boolean equals(Object that) {
+        if (this == that) return true;
+        if (!(that instanceof VectorVal)) return false;
+        VectorVal other = (VectorVal) that;
+        if (this.count != other.count || this.hashCode() != other.hashCode()) return false;
+        for (int i = 0; i < count; i++) {
+            if (!this.get(i).equals(other.get(i))) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int h = hash;
+        if (h == 0 && !hashIsZero) {
+            h = 1;
+            for (int i = 0; i < count; i++) {
+                h = 31 * h + get(i).hashCode();
+            }
+            if (h == 0) {
+                hashIsZero = true;
+            }
+            else hash = h;
+        }
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("vector(");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(get(i));
+        }
+        return sb.append(")").toString();
+    }
+
+    /**
+     * The index of the first element in the tail.
+     */
+    private int tailOffset() {
+        return count < WIDTH ? 0 : ((count - 1) >>> BITS) << BITS;
+    }
+
+    private Object[] pushTail(int level, Object[] parent, Value[] leaf) {
+        int sub = ((count - 1) >>> level) & MASK;
+        Object[] node = parent.clone();
+        if (level == BITS) {
+            node[sub] = leaf;
+        }
+        else {
+            Object[] child = (Object[]) parent[sub];
+            node[sub] = child != null ? pushTail(level - BITS, child, leaf) : newPath(level - BITS, leaf);
+        }
+        return node;
+    }
+
+    private static Object[] newPath(int level, Object[] leaf) {
+        if (level == 0) {
+            return leaf;
+        }
+        Object[] node = new Object[WIDTH];
+        node[0] = newPath(level - BITS, leaf);
+        return node;
+    }
+
+    private static Object[] update(int level, Object[] node, int i, Value v) {
+        Object[] copy = node.clone();
+        if (level == 0) {
+            copy[i & MASK] = v;
+        }
+        else {
+            int sub = (i >>> level) & MASK;
+            copy[sub] = update(level - BITS, (Object[]) node[sub], i, v);
+        }
+        return copy;
+    }
+}
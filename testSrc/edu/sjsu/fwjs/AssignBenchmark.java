@@ -0,0 +1,119 @@
+package edu.sjsu.fwjs;
+
+import java.util.ArrayList;
+
+/**
+ * Measures the cost of the loop while (i < n) { i = i + 1; } when i is
+ * declared some number of scopes out from the loop.
+ *
+ * Run with 'make bench'.  Each row reports nanoseconds per iteration, the
+ * best of several runs, for
+ * the old two-pass update, which looked the variable up in each scope
+ * before storing it and then looked it up again to return it, for the
+ * current single-pass AssignExpr, and for the same loop once the program
+ * has been resolved.
+ */
+public class AssignBenchmark {
+    private static final int[] DEPTHS = {0, 1, 2, 4};
+    private static final int OPS = 10000000;
+    private static final int RUNS = 5;
+
+    public static void main(String[] args) {
+        // The first round only warms up the JIT.
+        run(false);
+        run(true);
+    }
+
+    private static void run(boolean report) {
+        if (report) {
+            System.out.printf("%6s %10s %10s %10s%n", "scopes", "two-pass", "one-pass", "resolved");
+        }
+        for (int depth : DEPTHS) {
+            Expression twoPass = loop(new TwoPassAssignExpr("i", increment()));
+            Expression onePass = loop(new AssignExpr("i", increment()));
+            Expression resolved = Scope.resolve(inFunctions(depth));
+            double[] row = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+            for (int r = 0; r < RUNS; r++) {
+                row[0] = Math.min(row[0], time(twoPass, nested(depth)));
+                row[1] = Math.min(row[1], time(onePass, nested(depth)));
+                row[2] = Math.min(row[2], time(resolved, new Environment()));
+            }
+            if (report) {
+                System.out.printf("%6d %10.2f %10.2f %10.2f%n", depth, row[0], row[1], row[2]);
+            }
+        }
+    }
+
+    private static double time(Expression prog, Environment env) {
+        long start = System.nanoTime();
+        prog.evaluate(env);
+        return (System.nanoTime() - start) / (double) OPS;
+    }
+
+    private static Expression increment() {
+        return new BinOpExpr(Op.ADD, new VarExpr("i"), new ValueExpr(new IntVal(1)));
+    }
+
+    private static Expression loop(Expression assign) {
+        return new WhileExpr(new BinOpExpr(Op.LT, new VarExpr("i"), new ValueExpr(new IntVal(OPS))),
+                assign);
+    }
+
+    /**
+     * An environment nested depth scopes inside the one that declares i.
+     * The outermost scope is local, as if the loop ran inside a function.
+     */
+    private static Environment nested(int depth) {
+        Environment env = new Environment(new Environment());
+        env.createVar("i", new IntVal(0));
+        for (int d = 0; d < depth; d++) {
+            env = new Environment(env);
+            env.createVar("other" + d, new IntVal(d));
+        }
+        return env;
+    }
+
+    /**
+     * (function() { var i = 0; (function() { ... loop ... })(); })();
+     * with the loop depth functions inside the one declaring i.
+     */
+    private static Expression inFunctions(int depth) {
+        Expression body = loop(new AssignExpr("i", increment()));
+        for (int d = 0; d < depth; d++) {
+            body = call(body);
+        }
+        return call(new SeqExpr(new VarDeclExpr("i", new ValueExpr(new IntVal(0))), body));
+    }
+
+    private static Expression call(Expression body) {
+        return new FunctionAppExpr(new FunctionDeclExpr(new ArrayList<String>(), body),
+                new ArrayList<Expression>());
+    }
+
+    /**
+     * The assignment as it was evaluated before updates took a single pass.
+     */
+    private static class TwoPassAssignExpr implements Expression {
+        private int varId;
+        private Expression e;
+
+        TwoPassAssignExpr(String varName, Expression e) {
+            this.varId = Symbols.intern(varName);
+            this.e = e;
+        }
+
+        public Value evaluate(Environment env) {
+            Value val1 = e.evaluate(env);
+            Environment currentEnv = env;
+            while (currentEnv.getVar(varId) == null && currentEnv.getOuterEnv() != null) {
+                currentEnv = currentEnv.getOuterEnv();
+            }
+            currentEnv.setVar(varId, val1);
+            return env.resolveVar(varId);
+        }
+
+        public Expression resolve(Scope scope) {
+            return this;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package edu.sjsu.fwjs;
+
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Measures a DictVal holding a million entries, against a java.util.HashMap
+ * of the same values.
+ *
+ * Run with 'make bench'.  Each row reports nanoseconds per operation for
+ * putting every key, looking every key up, and deleting every key, with
+ * consecutive int keys, random int keys and string keys.  Consecutive
+ * ints are the best case for a HashMap, whose buckets they fill in order;
+ * a DictVal scatters them like any other keys.
+ */
+public class DictBenchmark {
+    private static final int ENTRIES = 1000000;
+
+    public static void main(String[] args) {
+        Value[] ints = new Value[ENTRIES];
+        Value[] randoms = new Value[ENTRIES];
+        Value[] strings = new Value[ENTRIES];
+        Random random = new Random(152);
+        for (int i = 0; i < ENTRIES; i++) {
+            ints[i] = IntVal.of(i);
+            strings[i] = new StrVal("key" + i);
+        }
+        // Distinct random ints, so every set has a million keys.
+        DictVal seen = new DictVal();
+        for (int i = 0; i < ENTRIES; ) {
+            Value k = IntVal.of(random.nextInt());
+            if (seen.put(k, k) == null) {
+                randoms[i++] = k;
+            }
+        }
+        Value[][] keySets = {ints, randoms, strings};
+        // The first round only warms up the JIT.
+        run(keySets, false);
+        run(keySets, true);
+    }
+
+    private static void run(Value[][] keySets, boolean report) {
+        String[] names = {"int", "random int", "string"};
+        if (report) {
+            System.out.printf("%-19s %8s %8s %8s%n", "", "put", "get", "delete");
+        }
+        for (int k = 0; k < keySets.length; k++) {
+            row(names[k] + " DictVal", timeDict(keySets[k]), report);
+            row(names[k] + " HashMap", timeHashMap(keySets[k]), report);
+        }
+    }
+
+    private static void row(String name, double[] times, boolean report) {
+        if (report) {
+            System.out.printf("%-19s %8.1f %8.1f %8.1f%n", name, times[0], times[1], times[2]);
+        }
+    }
+
+    private static double[] timeDict(Value[] keys) {
+        DictVal dict = new DictVal();
+        long start = System.nanoTime();
+        for (Value k : keys) {
+            dict.put(k, k);
+        }
+        long put = System.nanoTime();
+        int found = 0;
+        for (Value k : keys) {
+            if (dict.get(k) != null) {
+                found++;
+            }
+        }
+        long get = System.nanoTime();
+        for (Value k : keys) {
+            dict.delete(k);
+        }
+        long delete = System.nanoTime();
+        check(found, dict.size());
+        return perOp(start, put, get, delete);
+    }
+
+    private static double[] timeHashMap(Value[] keys) {
+        HashMap<Value, Value> map = new HashMap<Value, Value>();
+        long start = System.nanoTime();
+        for (Value k : keys) {
+            map.put(k, k);
+        }
+        long put = System.nanoTime();
+        int found = 0;
+        for (Value k : keys) {
+            if (map.get(k) != null) {
+                found++;
+            }
+        }
+        long get = System.nanoTime();
+        for (Value k : keys) {
+            map.remove(k);
+        }
+        long delete = System.nanoTime();
+        check(found, map.size());
+        return perOp(start, put, get, delete);
+    }
+
+    private static void check(int found, int left) {
+        if (found != ENTRIES || left != 0) {
+            throw new AssertionError("found " + found + " keys, " + left + " left");
+        }
+    }
+
+    private static double[] perOp(long start, long put, long get, long delete) {
+        return new double[] {
+            (put - start) / (double) ENTRIES,
+            (get - put) / (double) ENTRIES,
+            (delete - get) / (double) ENTRIES,
+        };
+    }
+}
@@ -0,0 +1,146 @@
+package edu.sjsu.fwjs;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Times the variable methods of a local Environment against a HashMap
+ * keyed by name used the way Environment used it before, for scopes of
+ * various sizes.
+ *
+ * Run with 'make bench'.  Each row reports nanoseconds per operation for
+ * resolveVar, updateVar of an existing variable, and createVar filling a
+ * fresh scope.  The old update looked the variable up and then stored it.
+ */
+public class EnvironmentBenchmark {
+    private static final int[] SIZES = {1, 2, 4, 8, 16, 64};
+    private static final int OPS = 20000000;
+
+    private static int sink;
+
+    public static void main(String[] args) {
+        // The first round only warms up the JIT.
+        run(false);
+        run(true);
+    }
+
+    private static void run(boolean report) {
+        if (report) {
+            System.out.printf("%5s %10s %10s %10s %10s %10s %10s%n", "vars",
+                    "get/hash", "get/env", "upd/hash", "upd/env", "new/hash", "new/env");
+        }
+        for (int size : SIZES) {
+            String[] names = new String[size];
+            int[] ids = new int[size];
+            for (int i = 0; i < size; i++) {
+                names[i] = "benchVar" + i;
+                ids[i] = Symbols.intern(names[i]);
+            }
+            double[] row = {
+                hashGet(names), envGet(ids),
+                hashUpdate(names), envUpdate(ids),
+                hashCreate(names), envCreate(ids),
+            };
+            if (report) {
+                System.out.printf("%5d %10.2f %10.2f %10.2f %10.2f %10.2f %10.2f%n", size,
+                        row[0], row[1], row[2], row[3], row[4], row[5]);
+            }
+        }
+    }
+
+    private static double hashGet(String[] names) {
+        Map<String, Value> map = new HashMap<String, Value>();
+        for (String name : names) {
+            map.put(name, new IntVal(1));
+        }
+        long start = System.nanoTime();
+        int n = 0;
+        for (int i = 0; i < OPS; i++) {
+            n += map.get(names[i % names.length]) != null ? 1 : 0;
+        }
+        sink += n;
+        return (System.nanoTime() - start) / (double) OPS;
+    }
+
+    private static double envGet(int[] ids) {
+        Environment env = scope(ids, new IntVal(1));
+        long start = System.nanoTime();
+        int n = 0;
+        for (int i = 0; i < OPS; i++) {
+            n += env.resolveVar(ids[i % ids.length]) != null ? 1 : 0;
+        }
+        sink += n;
+        return (System.nanoTime() - start) / (double) OPS;
+    }
+
+    private static double hashUpdate(String[] names) {
+        Map<String, Value> map = new HashMap<String, Value>();
+        Value v = new IntVal(2);
+        for (String name : names) {
+            map.put(name, v);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < OPS; i++) {
+            String name = names[i % names.length];
+            // The old updateVar looked the variable up and then stored it.
+            if (map.get(name) != null) {
+                map.put(name, v);
+            }
+        }
+        sink += map.size();
+        return (System.nanoTime() - start) / (double) OPS;
+    }
+
+    private static double envUpdate(int[] ids) {
+        Value v = new IntVal(2);
+        Environment env = scope(ids, v);
+        long start = System.nanoTime();
+        for (int i = 0; i < OPS; i++) {
+            env.updateVar(ids[i % ids.length], v);
+        }
+        sink += env.resolveVar(ids[0]) == v ? 1 : 0;
+        return (System.nanoTime() - start) / (double) OPS;
+    }
+
+    private static double hashCreate(String[] names) {
+        Value v = new IntVal(3);
+        int scopes = OPS / names.length;
+        long start = System.nanoTime();
+        for (int s = 0; s < scopes; s++) {
+            Map<String, Value> map = new HashMap<String, Value>();
+            for (String name : names) {
+                if (map.get(name) == null) {
+                    map.put(name, v);
+                }
+            }
+            sink += map.size();
+        }
+        return (System.nanoTime() - start) / (double) (scopes * names.length);
+    }
+
+    private static double envCreate(int[] ids) {
+        Value v = new IntVal(3);
+        Environment global = new Environment();
+        int scopes = OPS / ids.length;
+        long start = System.nanoTime();
+        for (int s = 0; s < scopes; s++) {
+            Environment env = new Environment(global);
+            for (int id : ids) {
+                env.createVar(id, v);
+            }
+            sink += env.resolveVar(ids[0]) == v ? 1 : 0;
+        }
+        return (System.nanoTime() - start) / (double) (scopes * ids.length);
+    }
+
+    /**
+     * A local scope, inside a global one, holding the variables.
+     */
+    private static Environment scope(int[] ids, Value v) {
+        Environment env = new Environment(new Environment());
+        for (int id : ids) {
+            env.createVar(id, v);
+        }
+        return env;
+    }
+}
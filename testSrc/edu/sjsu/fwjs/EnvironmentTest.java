@@ -0,0 +1,242 @@
+package edu.sjsu.fwjs;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class EnvironmentTest {
+
+    @Test
+    public void testSymbolsInterned() {
+        int id = Symbols.intern("environmentTestSymbol");
+        assertEquals(id, Symbols.intern(new String("environmentTestSymbol")));
+        assertEquals("environmentTestSymbol", Symbols.name(id));
+        assertNotEquals(id, Symbols.intern("environmentTestOther"));
+    }
+
+    @Test
+    public void testIntMapGrows() {
+        IntMap<Value> map = new IntMap<Value>();
+        for (int i = 0; i < 1000; i++) {
+            assertNull(map.put(i * 7, new IntVal(i)));
+            // Every entry so far must survive each change of layout.
+            for (int j = 0; j <= i && i < 20; j++) {
+                assertEquals(new IntVal(j), map.get(j * 7));
+            }
+        }
+        assertEquals(1000, map.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(new IntVal(i), map.get(i * 7));
+        }
+        assertNull(map.get(3));
+        assertEquals(new IntVal(5), map.put(35, new IntVal(-5)));
+        assertEquals(new IntVal(-5), map.get(35));
+    }
+
+    @Test
+    public void testIntMapConditionalPuts() {
+        for (int size : new int[] {1, 3, 5, 40}) {
+            IntMap<Value> map = new IntMap<Value>();
+            for (int i = 0; i < size; i++) {
+                map.put(i, new IntVal(i));
+            }
+            assertNull(map.replace(size, new IntVal(-1)));
+            assertNull(map.get(size));
+            assertEquals(new IntVal(0), map.replace(0, new IntVal(-1)));
+            assertEquals(new IntVal(-1), map.putIfAbsent(0, new IntVal(-2)));
+            assertEquals(new IntVal(-1), map.get(0));
+            assertNull(map.putIfAbsent(size, new IntVal(size)));
+            assertEquals(new IntVal(size), map.get(size));
+            assertEquals(size + 1, map.size());
+        }
+    }
+
+    @Test
+    public void testUpdateNestedScopes() {
+        Environment global = new Environment();
+        global.createVar("x", new IntVal(1));
+        Environment outer = new Environment(global);
+        outer.createVar("y", new IntVal(2));
+        Environment inner = new Environment(outer);
+        inner.updateVar("x", new IntVal(3));
+        inner.updateVar("y", new IntVal(4));
+        inner.updateVar("z", new IntVal(5));
+        assertEquals(new IntVal(3), global.getVar("x"));
+        assertEquals(new IntVal(4), outer.getVar("y"));
+        assertEquals(new IntVal(5), global.getVar("z"));
+        assertNull(inner.getVar("x"));
+        assertNull(inner.getVar("z"));
+    }
+
+    @Test
+    public void testManyGlobals() {
+        Environment env = new Environment();
+        for (int i = 0; i < 100; i++) {
+            env.updateVar("g" + i, new IntVal(i));
+        }
+        Environment local = new Environment(env);
+        local.createVar("g5", new IntVal(-1));
+        assertEquals(new IntVal(-1), local.resolveVar("g5"));
+        assertEquals(new IntVal(99), local.resolveVar("g99"));
+        assertEquals(new IntVal(5), env.resolveVar("g5"));
+    }
+
+    @Test
+    public void testForkIsolated() {
+        Environment base = new Environment();
+        base.createVar("x", new IntVal(1));
+        Environment a = base.fork();
+        Environment b = base.fork();
+        a.updateVar("x", new IntVal(2));
+        a.createVar("y", new IntVal(3));
+        assertEquals(new IntVal(2), a.resolveVar("x"));
+        assertEquals(new IntVal(1), b.resolveVar("x"));
+        assertEquals(new NullVal(), b.resolveVar("y"));
+        // Later changes to the forked environment do not reach its forks.
+        base.updateVar("x", new IntVal(4));
+        assertEquals(new IntVal(4), base.resolveVar("x"));
+        assertEquals(new IntVal(1), b.resolveVar("x"));
+        assertEquals(new IntVal(1), b.fork().resolveVar("x"));
+        try {
+            b.createVar("x", new IntVal(5));
+            fail("Expected the global of the base to be defined");
+        } catch (RuntimeException e) {
+            // expected
+        }
+    }
+
+    @Test
+    // var count = 0; var inc = function() { count = count + 1; };
+    // then, on each fork: inc(); inc(); count;
+    public void testForkPrelude() {
+        Expression counter = new FunctionDeclExpr(new ArrayList<String>(),
+                new AssignExpr("count", new BinOpExpr(Op.ADD,
+                        new VarExpr("count"), new ValueExpr(new IntVal(1)))));
+        Expression prelude = new SeqExpr(new VarDeclExpr("count", new ValueExpr(new IntVal(0))),
+                new VarDeclExpr("inc", counter));
+        Expression inc = new FunctionAppExpr(new VarExpr("inc"), new ArrayList<Expression>());
+        Expression request = new SeqExpr(inc, new SeqExpr(inc, new VarExpr("count")));
+
+        Environment dynamic = new Environment();
+        prelude.evaluate(dynamic);
+        Environment resolved = new Environment();
+        Scope.resolve(prelude).evaluate(resolved);
+        Expression resolvedRequest = Scope.resolve(request);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(new IntVal(2), request.evaluate(dynamic.fork()));
+            assertEquals(new IntVal(2), resolvedRequest.evaluate(resolved.fork()));
+        }
+        assertEquals(new IntVal(0), dynamic.resolveVar("count"));
+        assertEquals(new IntVal(0), resolved.resolveVar("count"));
+        Environment concurrent = Environment.concurrent();
+        Scope.resolve(prelude).evaluate(concurrent);
+        assertEquals(new IntVal(2), resolvedRequest.evaluate(concurrent.fork()));
+        assertEquals(new IntVal(0), concurrent.resolveVar("count"));
+    }
+
+    @Test
+    // The counter of testForkPrelude, called from an environment that was
+    // not forked from the one it was defined in, keeps its own globals.
+    public void testClosureKeepsItsGlobals() {
+        Expression counter = new FunctionDeclExpr(new ArrayList<String>(),
+                new AssignExpr("count", new BinOpExpr(Op.ADD,
+                        new VarExpr("count"), new ValueExpr(new IntVal(1)))));
+        Expression prelude = new SeqExpr(new VarDeclExpr("count", new ValueExpr(new IntVal(0))),
+                new VarDeclExpr("inc", counter));
+        Expression request = new SeqExpr(
+                new FunctionAppExpr(new VarExpr("inc"), new ArrayList<Expression>()),
+                new VarExpr("count"));
+
+        Expression resolvedRequest = Scope.resolve(request);
+        for (boolean resolved : new boolean[] {false, true}) {
+            Environment defining = new Environment();
+            (resolved ? Scope.resolve(prelude) : prelude).evaluate(defining);
+            Environment other = new Environment();
+            other.createVar("count", new IntVal(10));
+            other.createVar("inc", defining.resolveVar("inc"));
+            Expression e = resolved ? resolvedRequest : request;
+            assertEquals(new IntVal(10), e.evaluate(other));
+            assertEquals(new IntVal(1), defining.resolveVar("count"));
+            // A fork of the other environment is not a fork of the defining one.
+            assertEquals(new IntVal(10), e.evaluate(other.fork()));
+            assertEquals(new IntVal(2), defining.resolveVar("count"));
+        }
+    }
+
+    @Test
+    public void testConcurrentGlobals() throws InterruptedException {
+        final Environment env = Environment.concurrent();
+        final int threads = 8;
+        final AtomicInteger declared = new AtomicInteger();
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            workers.add(new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < 200; i++) {
+                        env.updateVar("t" + id + "_" + i, new IntVal(i));
+                    }
+                    try {
+                        env.createVar("shared", new IntVal(id));
+                        declared.incrementAndGet();
+                    } catch (RuntimeException e) {
+                        // Another thread declared it first.
+                    }
+                }
+            }));
+        }
+        for (Thread w : workers) {
+            w.start();
+        }
+        for (Thread w : workers) {
+            w.join();
+        }
+        assertEquals(1, declared.get());
+        for (int t = 0; t < threads; t++) {
+            for (int i = 0; i < 200; i++) {
+                assertEquals(new IntVal(i), env.resolveVar("t" + t + "_" + i));
+            }
+        }
+    }
+
+    @Test
+    // var add = function(a, b) { a + b; };
+    // then, on each thread: var n = 0; while (n < 1000) { n = add(n, 1); } with its own n
+    public void testConcurrentPrograms() throws InterruptedException {
+        final Environment env = Environment.concurrent();
+        List<String> params = new ArrayList<String>();
+        params.add("a");
+        params.add("b");
+        Scope.resolve(new VarDeclExpr("add", new FunctionDeclExpr(params,
+                new BinOpExpr(Op.ADD, new VarExpr("a"), new VarExpr("b"))))).evaluate(env);
+        final int threads = 4;
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final String n = "n" + t;
+            workers.add(new Thread(new Runnable() {
+                public void run() {
+                    List<Expression> args = new ArrayList<Expression>();
+                    args.add(new VarExpr(n));
+                    args.add(new ValueExpr(new IntVal(1)));
+                    Expression loop = new SeqExpr(new VarDeclExpr(n, new ValueExpr(new IntVal(0))),
+                            new WhileExpr(new BinOpExpr(Op.LT, new VarExpr(n), new ValueExpr(new IntVal(1000))),
+                                    new AssignExpr(n, new FunctionAppExpr(new VarExpr("add"), args))));
+                    Scope.resolve(loop).evaluate(env);
+                }
+            }));
+        }
+        for (Thread w : workers) {
+            w.start();
+        }
+        for (Thread w : workers) {
+            w.join();
+        }
+        for (int t = 0; t < threads; t++) {
+            assertEquals(new IntVal(1000), env.resolveVar("n" + t));
+        }
+    }
+}
@@ -2,6 +2,7 @@ package edu.sjsu.fwjs;
 
 import static org.junit.Assert.*;
 
+import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -208,5 +209,1043 @@ public class ExpressionTest {
             fail();
         } catch (Exception e) {}
     }
-}
 
+    @Test
+    // x=112358; (function() { x=42; x; })(); x;
+    public void testResolvedScope() {
+        Environment env = new Environment();
+        VarDeclExpr newVar = new VarDeclExpr("x", new ValueExpr(new IntVal(112358)));
+        FunctionDeclExpr f = new FunctionDeclExpr(new ArrayList<String>(),
+                new SeqExpr(new AssignExpr("x", new ValueExpr(new IntVal(42))),
+                        new VarExpr("x")));
+        SeqExpr seq = new SeqExpr(new SeqExpr(newVar,
+                new FunctionAppExpr(f, new ArrayList<Expression>())),
+                new VarExpr("x"));
+        Value v = Scope.resolve(seq).evaluate(env);
+        assertEquals(new IntVal(42), v);
+    }
+
+    @Test
+    // x=1; (function() { var y=x; var x=2; y + x; })();
+    public void testResolvedLocalBeforeDecl() {
+        Environment env = new Environment();
+        FunctionDeclExpr f = new FunctionDeclExpr(new ArrayList<String>(),
+                new SeqExpr(new VarDeclExpr("y", new VarExpr("x")),
+                        new SeqExpr(new VarDeclExpr("x", new ValueExpr(new IntVal(2))),
+                                new BinOpExpr(Op.ADD, new VarExpr("y"), new VarExpr("x")))));
+        SeqExpr seq = new SeqExpr(new AssignExpr("x", new ValueExpr(new IntVal(1))),
+                new FunctionAppExpr(f, new ArrayList<Expression>()));
+        Value v = Scope.resolve(seq).evaluate(env);
+        assertEquals(new IntVal(3), v);
+        assertEquals(new IntVal(1), env.resolveVar("x"));
+    }
+
+    @Test
+    // var makeCounter = function() { var i=0; function() { i = i + 1; }; };
+    // var ctr = makeCounter(); ctr(); ctr(); ctr();
+    public void testResolvedClosure() {
+        Environment env = new Environment();
+        Expression prog = Scope.resolve(makeCounterProgram(3));
+        assertEquals(new IntVal(3), prog.evaluate(env));
+    }
+
+    @Test
+    // var sum = function(n) { if (n == 0) 0; else n + sum(n - 1); }; sum(100);
+    public void testResolvedRecursion() {
+        Environment env = new Environment();
+        Expression prog = Scope.resolve(new SeqExpr(new VarDeclExpr("sum", sumFunction()),
+                callSum(new ValueExpr(new IntVal(100)))));
+        assertEquals(new IntVal(5050), prog.evaluate(env));
+    }
+
+    @Test
+    // var pair = function(x,y) { function(f) { f(x,y); }; };
+    // var snd = function(p) { p(function(x,y) { y; }); };
+    // snd(pair(1,2));
+    public void testResolvedCapturedParams() {
+        Environment env = new Environment();
+        FunctionDeclExpr pair = new FunctionDeclExpr(names("x", "y"),
+                new FunctionDeclExpr(names("f"),
+                        new FunctionAppExpr(new VarExpr("f"), exprs(new VarExpr("x"), new VarExpr("y")))));
+        FunctionDeclExpr snd = new FunctionDeclExpr(names("p"),
+                new FunctionAppExpr(new VarExpr("p"),
+                        exprs(new FunctionDeclExpr(names("x", "y"), new VarExpr("y")))));
+        Expression prog = new SeqExpr(new VarDeclExpr("pair", pair),
+                new SeqExpr(new VarDeclExpr("snd", snd),
+                        new FunctionAppExpr(new VarExpr("snd"),
+                                exprs(new FunctionAppExpr(new VarExpr("pair"),
+                                        exprs(new ValueExpr(new IntVal(1)), new ValueExpr(new IntVal(2))))))));
+        assertEquals(new IntVal(2), Scope.resolve(prog).evaluate(env));
+    }
+
+    @Test
+    // var f = function(a) { var g = function() { function() { a = a + 1; }; }; g()(); a; }; f(1);
+    public void testResolvedNestedCapture() {
+        Environment env = new Environment();
+        FunctionDeclExpr inc = new FunctionDeclExpr(names(),
+                new AssignExpr("a", new BinOpExpr(Op.ADD, new VarExpr("a"), new ValueExpr(new IntVal(1)))));
+        FunctionDeclExpr f = new FunctionDeclExpr(names("a"),
+                new SeqExpr(new VarDeclExpr("g", new FunctionDeclExpr(names(), inc)),
+                        new SeqExpr(new FunctionAppExpr(new FunctionAppExpr(new VarExpr("g"), exprs()), exprs()),
+                                new VarExpr("a"))));
+        Expression prog = new FunctionAppExpr(f, exprs(new ValueExpr(new IntVal(1))));
+        assertEquals(new IntVal(2), Scope.resolve(prog).evaluate(env));
+    }
+
+    @Test
+    // var f = function() { g; }; var a = f(); g = 7; var b = f();
+    public void testResolvedGlobalCache() {
+        Expression prog = Scope.resolve(new SeqExpr(
+                new VarDeclExpr("f", new FunctionDeclExpr(names(), new VarExpr("g"))),
+                new SeqExpr(new VarDeclExpr("a", new FunctionAppExpr(new VarExpr("f"), exprs())),
+                        new SeqExpr(new AssignExpr("g", new ValueExpr(new IntVal(7))),
+                                new VarDeclExpr("b", new FunctionAppExpr(new VarExpr("f"), exprs()))))));
+        Environment env = new Environment();
+        prog.evaluate(env);
+        assertEquals(new NullVal(), env.resolveVar("a"));
+        assertEquals(new IntVal(7), env.resolveVar("b"));
+        // The cached cells must not leak into another global environment.
+        Environment other = new Environment();
+        other.updateVar("g", new IntVal(1));
+        prog.evaluate(other);
+        assertEquals(new IntVal(1), other.resolveVar("a"));
+        assertEquals(new IntVal(7), env.resolveVar("g"));
+    }
+
+    @Test
+    // var f = function(n) { var x = n; if (n == 0) { var x = 0; } else x; };
+    // f(0) fails, after which f(5) must still see a fresh frame.
+    public void testResolvedFrameReuseAfterError() {
+        Environment env = new Environment();
+        FunctionDeclExpr f = new FunctionDeclExpr(names("n"),
+                new SeqExpr(new VarDeclExpr("x", new VarExpr("n")),
+                        new IfExpr(new BinOpExpr(Op.EQ, new VarExpr("n"), new ValueExpr(new IntVal(0))),
+                                new VarDeclExpr("x", new ValueExpr(new IntVal(0))),
+                                new VarExpr("x"))));
+        Scope.resolve(new VarDeclExpr("f", f)).evaluate(env);
+        Expression bad = Scope.resolve(new FunctionAppExpr(new VarExpr("f"),
+                exprs(new ValueExpr(new IntVal(0)))));
+        try {
+            bad.evaluate(env);
+            fail();
+        } catch (RuntimeException e) {}
+        Expression ok = Scope.resolve(new FunctionAppExpr(new VarExpr("f"),
+                exprs(new ValueExpr(new IntVal(5)))));
+        assertEquals(new IntVal(5), ok.evaluate(env));
+    }
+
+    @Test
+    public void testSharedValues() {
+        Environment env = new Environment();
+        Expression sum = new BinOpExpr(Op.ADD,
+                new ValueExpr(new IntVal(40)),
+                new ValueExpr(new IntVal(2)));
+        assertSame(IntVal.of(42), sum.evaluate(env));
+        assertSame(BoolVal.TRUE, new BinOpExpr(Op.LT, sum, new ValueExpr(new IntVal(43))).evaluate(env));
+        assertSame(BoolVal.FALSE, new BinOpExpr(Op.EQ, sum, new ValueExpr(new IntVal(43))).evaluate(env));
+        assertSame(NullVal.NULL, new VarExpr("undefinedVar").evaluate(env));
+        // Integers outside the cache are still equal by value.
+        assertEquals(new IntVal(1000000), IntVal.of(1000000));
+        assertEquals(new IntVal(-1000000), IntVal.of(-1000000));
+    }
+
+    @Test
+    // (2 + 3) * 4 - 15 % 4 > 16 is an int comparison without boxing the operands
+    public void testUnboxedEvaluation() {
+        Environment env = new Environment();
+        Expression arith = new BinOpExpr(Op.SUBTRACT,
+                new BinOpExpr(Op.MULTIPLY,
+                        new BinOpExpr(Op.ADD, new ValueExpr(new IntVal(2)), new ValueExpr(new IntVal(3))),
+                        new ValueExpr(new IntVal(4))),
+                new BinOpExpr(Op.MOD, new ValueExpr(new IntVal(15)), new ValueExpr(new IntVal(4))));
+        assertEquals(17, arith.evaluateInt(env));
+        assertEquals(new IntVal(17), arith.evaluate(env));
+        Expression cmp = new BinOpExpr(Op.GT, arith, new ValueExpr(new IntVal(16)));
+        assertTrue(cmp.evaluateBoolean(env));
+        env.createVar("b", new BoolVal(false));
+        assertFalse(new VarExpr("b").evaluateBoolean(env));
+        try {
+            cmp.evaluateInt(env);
+            fail("Expected a comparison not to be a number");
+        } catch (ClassCastException e) {
+            // expected
+        }
+        try {
+            arith.evaluateBoolean(env);
+            fail("Expected a number not to be a boolean");
+        } catch (ClassCastException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testTaggedWords() {
+        for (int i : new int[] {0, 1, -1, 42, Integer.MAX_VALUE, Integer.MIN_VALUE}) {
+            long word = Tagged.ofInt(i);
+            assertTrue(Tagged.isInt(word));
+            assertEquals(i, Tagged.toInt(word));
+            assertEquals(new IntVal(i), Tagged.decode(word, null));
+        }
+        assertEquals(new BoolVal(true), Tagged.decode(Tagged.encode(new BoolVal(true)), null));
+        assertEquals(new BoolVal(false), Tagged.decode(Tagged.encode(new BoolVal(false)), null));
+        assertEquals(new NullVal(), Tagged.decode(Tagged.encode(new NullVal()), null));
+        assertNull(Tagged.decode(Tagged.UNDECLARED, null));
+        assertEquals(Tagged.REF, Tagged.encode(new ClosureVal(names(), null, null, null)));
+    }
+
+    @Test
+    // (function(n) { var x = n; var r = 0; while (r < n) { r = r + 1; }
+    //                x = function() { r; }; x(); })(10);
+    // with the result of sum(100) in tagged frames as well
+    public void testTaggedFrames() {
+        Environment env = new Environment();
+        Expression body = new SeqExpr(new VarDeclExpr("x", new VarExpr("n")),
+                new SeqExpr(new VarDeclExpr("r", new ValueExpr(new IntVal(0))),
+                        new SeqExpr(new WhileExpr(new BinOpExpr(Op.LT, new VarExpr("r"), new VarExpr("n")),
+                                new AssignExpr("r", new BinOpExpr(Op.ADD,
+                                        new VarExpr("r"), new ValueExpr(new IntVal(1))))),
+                                new SeqExpr(new AssignExpr("x", new FunctionDeclExpr(names(), new VarExpr("r"))),
+                                        new FunctionAppExpr(new VarExpr("x"), exprs())))));
+        Expression prog = Scope.resolve(new FunctionAppExpr(new FunctionDeclExpr(names("n"), body),
+                exprs(new ValueExpr(new IntVal(10)))), true);
+        assertEquals(new IntVal(10), prog.evaluate(env));
+        assertEquals(new IntVal(10), prog.evaluate(env));
+
+        Expression sum = Scope.resolve(new SeqExpr(new VarDeclExpr("sum", sumFunction()),
+                callSum(new ValueExpr(new IntVal(100)))), true);
+        assertEquals(new IntVal(5050), sum.evaluate(env));
+    }
+
+    @Test
+    // (function(n) { var i = 0; while (i < n) { i = i + 1; } var big = 2147483647;
+    //     big = big + 1; var s = 1; s = s + "a"; [i, big, s]; })(1000000);
+    public void testTaggedIntStores() {
+        Expression i = new VarExpr("i");
+        Expression body = new SeqExpr(new VarDeclExpr("i", new ValueExpr(new IntVal(0))),
+                new SeqExpr(new WhileExpr(new BinOpExpr(Op.LT, i, new VarExpr("n")),
+                        new AssignExpr("i", new BinOpExpr(Op.ADD, i, new ValueExpr(new IntVal(1))))),
+                new SeqExpr(new VarDeclExpr("big", new ValueExpr(new IntVal(Integer.MAX_VALUE))),
+                new SeqExpr(new AssignExpr("big", new BinOpExpr(Op.ADD, new VarExpr("big"),
+                        new ValueExpr(new IntVal(1)))),
+                new SeqExpr(new VarDeclExpr("s", new ValueExpr(new IntVal(1))),
+                new SeqExpr(new AssignExpr("s", new BinOpExpr(Op.ADD, new VarExpr("s"),
+                        new ValueExpr(new StrVal("a")))),
+                        new ArrayExpr(exprs(i, new VarExpr("big"), new VarExpr("s")))))))));
+        Expression prog = Scope.resolve(new FunctionAppExpr(new FunctionDeclExpr(names("n"), body),
+                exprs(new ValueExpr(new IntVal(1000000)))), true);
+        Environment env = new Environment();
+        assertEquals("[1000000, 2147483648, 1a]", prog.evaluate(env).toString());
+
+        // A boxed i would take at least 16 bytes per iteration.
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        long id = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(id);
+        prog.evaluate(env);
+        assertTrue(threads.getThreadAllocatedBytes(id) - before < 1000000);
+    }
+
+    @Test
+    // var fact = function(n) { if (n <= 1) 1 else n * fact(n - 1); };
+    public void testFactorialOverflow() {
+        Environment env = new Environment();
+        Expression fact = new FunctionDeclExpr(names("n"),
+                new IfExpr(new BinOpExpr(Op.LE, new VarExpr("n"), new ValueExpr(new IntVal(1))),
+                        new ValueExpr(new IntVal(1)),
+                        new BinOpExpr(Op.MULTIPLY, new VarExpr("n"),
+                                new FunctionAppExpr(new VarExpr("fact"), exprs(
+                                        new BinOpExpr(Op.SUBTRACT, new VarExpr("n"),
+                                                new ValueExpr(new IntVal(1))))))));
+        Scope.resolve(new VarDeclExpr("fact", fact)).evaluate(env);
+        assertEquals(new IntVal(479001600),
+                callFact(12).evaluate(env));
+        assertEquals(new LongVal(6227020800L), callFact(13).evaluate(env));
+        assertEquals(new BigIntVal(new BigInteger("15511210043330985984000000")),
+                callFact(25).evaluate(env));
+        // fact(25) / fact(24) == 25
+        assertEquals(new IntVal(25), new BinOpExpr(Op.DIVIDE, callFact(25), callFact(24)).evaluate(env));
+        assertTrue(new BinOpExpr(Op.GT, callFact(21), callFact(20)).evaluateBoolean(env));
+        assertTrue(new BinOpExpr(Op.LT, new ValueExpr(new IntVal(3)), callFact(13)).evaluateBoolean(env));
+    }
+
+    @Test
+    public void testIntOverflowPromotes() {
+        Environment env = new Environment();
+        Expression max = new ValueExpr(new IntVal(Integer.MAX_VALUE));
+        Expression min = new ValueExpr(new IntVal(Integer.MIN_VALUE));
+        Expression one = new ValueExpr(new IntVal(1));
+        Expression big = new BinOpExpr(Op.ADD, max, one);
+        assertEquals(new LongVal(Integer.MAX_VALUE + 1L), big.evaluate(env));
+        assertEquals(new IntVal(Integer.MAX_VALUE),
+                new BinOpExpr(Op.SUBTRACT, big, one).evaluate(env));
+        assertEquals(new LongVal(-(long) Integer.MIN_VALUE),
+                new BinOpExpr(Op.DIVIDE, min, new ValueExpr(new IntVal(-1))).evaluate(env));
+        assertEquals(new IntVal(0), new BinOpExpr(Op.MOD, min, new ValueExpr(new IntVal(-1))).evaluate(env));
+        assertEquals(new BigIntVal(BigInteger.valueOf(Long.MAX_VALUE).add(BigInteger.ONE)),
+                Numbers.arithmetic(Op.ADD, new LongVal(Long.MAX_VALUE), new IntVal(1)));
+        assertEquals(new BigIntVal(BigInteger.valueOf(Long.MIN_VALUE).negate()),
+                Numbers.arithmetic(Op.DIVIDE, new LongVal(Long.MIN_VALUE), new IntVal(-1)));
+        assertFalse(new BinOpExpr(Op.EQ, big, max).evaluateBoolean(env));
+        try {
+            new BinOpExpr(Op.DIVIDE, big, new ValueExpr(new IntVal(0))).evaluate(env);
+            fail("Expected division by zero to fail");
+        } catch (ArithmeticException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testDoubleArithmetic() {
+        Environment env = new Environment();
+        Expression half = new ValueExpr(new DoubleVal(0.5));
+        Expression three = new ValueExpr(new IntVal(3));
+        assertEquals(new DoubleVal(3.5), new BinOpExpr(Op.ADD, three, half).evaluate(env));
+        assertEquals(new DoubleVal(1.5), new BinOpExpr(Op.MULTIPLY, half, three).evaluate(env));
+        assertEquals(new DoubleVal(6.0), new BinOpExpr(Op.DIVIDE, three, half).evaluate(env));
+        assertEquals(new DoubleVal(Double.POSITIVE_INFINITY),
+                new BinOpExpr(Op.DIVIDE, half, new ValueExpr(new IntVal(0))).evaluate(env));
+        assertTrue(new BinOpExpr(Op.GT, three, half).evaluateBoolean(env));
+        assertTrue(new BinOpExpr(Op.EQ, three, new ValueExpr(new DoubleVal(3.0))).evaluateBoolean(env));
+        Expression nan = new ValueExpr(new DoubleVal(Double.NaN));
+        assertFalse(new BinOpExpr(Op.EQ, nan, nan).evaluateBoolean(env));
+        assertEquals(new DoubleVal(1e10),
+                new BinOpExpr(Op.MULTIPLY, new ValueExpr(new LongVal(10000000000L)),
+                        new ValueExpr(new DoubleVal(1.0))).evaluate(env));
+    }
+
+    @Test
+    // x / 2 + 1 evaluated with x holding an int, then a double, then an int
+    public void testMixedOperandTypes() {
+        Environment env = new Environment();
+        Expression exp = new BinOpExpr(Op.ADD,
+                new BinOpExpr(Op.DIVIDE, new VarExpr("x"), new ValueExpr(new IntVal(2))),
+                new ValueExpr(new IntVal(1)));
+        env.createVar("x", new IntVal(7));
+        assertEquals(new IntVal(4), exp.evaluate(env));
+        env.updateVar("x", new DoubleVal(7.0));
+        assertEquals(new DoubleVal(4.5), exp.evaluate(env));
+        assertEquals(new DoubleVal(4.5), exp.evaluate(env));
+        env.updateVar("x", new IntVal(7));
+        assertEquals(new IntVal(4), exp.evaluate(env));
+        env.updateVar("x", new LongVal(1L << 40));
+        assertEquals(new LongVal((1L << 39) + 1), exp.evaluate(env));
+        env.updateVar("x", new DoubleVal(-3.0));
+        assertEquals(new DoubleVal(-0.5), exp.evaluate(env));
+    }
+
+    @Test
+    public void testStrings() {
+        Environment env = new Environment();
+        Expression a = new ValueExpr(StrVal.literal("a"));
+        Expression one = new ValueExpr(new IntVal(1));
+        Expression two = new ValueExpr(new IntVal(2));
+        assertEquals(new StrVal("a12"),
+                new BinOpExpr(Op.ADD, new BinOpExpr(Op.ADD, a, one), two).evaluate(env));
+        assertEquals(new StrVal("3a"),
+                new BinOpExpr(Op.ADD, new BinOpExpr(Op.ADD, one, two), a).evaluate(env));
+        assertSame(StrVal.literal("a"), StrVal.literal(new String("a")));
+        assertTrue(new BinOpExpr(Op.EQ, a, new ValueExpr(new StrVal("a"))).evaluateBoolean(env));
+        assertFalse(new BinOpExpr(Op.EQ, a, one).evaluateBoolean(env));
+        assertEquals(new StrVal("a").hashCode(), StrVal.literal("a").hashCode());
+        // A loop that never runs has no value.
+        Expression never = new WhileExpr(new ValueExpr(new BoolVal(false)), one);
+        Expression withNever = new BinOpExpr(Op.ADD, a, never);
+        assertEquals(new StrVal("anull"), withNever.evaluate(env));
+        assertEquals(new StrVal("anull"), Scope.resolve(withNever).evaluate(env));
+        try {
+            new BinOpExpr(Op.MULTIPLY, a, two).evaluate(env);
+            fail("Expected only + to accept strings");
+        } catch (ClassCastException e) {
+            // expected
+        }
+    }
+
+    @Test
+    // var s = ""; var i = 0; while (i < 100000) { s = s + "ab"; i = i + 1; } s;
+    public void testStringRope() {
+        Environment env = new Environment();
+        Expression loop = new SeqExpr(new VarDeclExpr("s", new ValueExpr(StrVal.literal(""))),
+                new SeqExpr(new VarDeclExpr("i", new ValueExpr(new IntVal(0))),
+                        new SeqExpr(new WhileExpr(
+                                new BinOpExpr(Op.LT, new VarExpr("i"), new ValueExpr(new IntVal(100000))),
+                                new SeqExpr(new AssignExpr("s", new BinOpExpr(Op.ADD,
+                                        new VarExpr("s"), new ValueExpr(StrVal.literal("ab")))),
+                                        new AssignExpr("i", new BinOpExpr(Op.ADD,
+                                                new VarExpr("i"), new ValueExpr(new IntVal(1)))))),
+                                new VarExpr("s"))));
+        StrVal s = (StrVal) loop.evaluate(env);
+        assertEquals(200000, s.length());
+        String flat = s.toString();
+        assertEquals(200000, flat.length());
+        assertTrue(flat.startsWith("abab") && flat.endsWith("abab"));
+        assertEquals(new StrVal(flat), s);
+    }
+
+    @Test
+    public void testArrayKinds() {
+        Environment env = new Environment();
+        env.createVar("a", new ArrayExpr(exprs(new ValueExpr(new IntVal(1)),
+                new ValueExpr(new IntVal(2)))).evaluate(env));
+        ArrayVal a = (ArrayVal) env.resolveVar("a");
+        assertEquals(ArrayVal.INTS, a.getKind());
+        Expression second = new IndexExpr(new VarExpr("a"), new ValueExpr(new IntVal(1)));
+        assertEquals(2, second.evaluateInt(env));
+        assertEquals(new IntVal(5),
+                new BinOpExpr(Op.ADD, second, new ValueExpr(new IntVal(3))).evaluate(env));
+        new IndexAssignExpr(new VarExpr("a"), new LengthExpr(new VarExpr("a")),
+                new ValueExpr(new IntVal(3))).evaluate(env);
+        assertEquals(new IntVal(3), new LengthExpr(new VarExpr("a")).evaluate(env));
+        assertEquals(ArrayVal.INTS, a.getKind());
+        assertEquals(new NullVal(), new IndexExpr(new VarExpr("a"), new ValueExpr(new IntVal(7))).evaluate(env));
+        new IndexAssignExpr(new VarExpr("a"), new ValueExpr(new IntVal(0)),
+                new ValueExpr(new StrVal("x"))).evaluate(env);
+        assertEquals(ArrayVal.VALUES, a.getKind());
+        assertEquals("[x, 2, 3]", a.toString());
+        ArrayVal twice = new ArrayVal(new ArrayList<Value>());
+        twice.set(0, a);
+        twice.set(1, a);
+        assertEquals("[[x, 2, 3], [x, 2, 3]]", twice.toString());
+        a.set(3, a);
+        assertEquals("[x, 2, 3, [...]]", a.toString());
+
+        ArrayVal flags = new ArrayVal(new ArrayList<Value>());
+        flags.set(0, new BoolVal(true));
+        flags.set(1, new BoolVal(false));
+        assertEquals(ArrayVal.BOOLEANS, flags.getKind());
+        env.createVar("flags", flags);
+        assertTrue(new IndexExpr(new VarExpr("flags"), new ValueExpr(new IntVal(0))).evaluateBoolean(env));
+        try {
+            flags.set(3, new BoolVal(true));
+            fail("Expected the index to be out of bounds");
+        } catch (RuntimeException e) {
+            // expected
+        }
+    }
+
+    @Test
+    // var a = []; var i = 0; while (i < 1000000) { a[i] = i; i = i + 1; }
+    // var sum = 0; i = 0; while (i < a.length) { sum = sum + a[i] % 7; i = i + 1; } sum;
+    public void testArraySum() {
+        Environment env = new Environment();
+        int n = 1000000;
+        Expression i = new VarExpr("i");
+        Expression next = new AssignExpr("i", new BinOpExpr(Op.ADD, i, new ValueExpr(new IntVal(1))));
+        Expression fill = new WhileExpr(new BinOpExpr(Op.LT, i, new ValueExpr(new IntVal(n))),
+                new SeqExpr(new IndexAssignExpr(new VarExpr("a"), i, i), next));
+        Expression sum = new WhileExpr(new BinOpExpr(Op.LT, i, new LengthExpr(new VarExpr("a"))),
+                new SeqExpr(new AssignExpr("sum", new BinOpExpr(Op.ADD, new VarExpr("sum"),
+                        new BinOpExpr(Op.MOD, new IndexExpr(new VarExpr("a"), i),
+                                new ValueExpr(new IntVal(7))))), next));
+        Expression prog = new SeqExpr(new VarDeclExpr("a", new ArrayExpr(exprs())),
+                new SeqExpr(new VarDeclExpr("i", new ValueExpr(new IntVal(0))),
+                        new SeqExpr(fill,
+                                new SeqExpr(new VarDeclExpr("sum", new ValueExpr(new IntVal(0))),
+                                        new SeqExpr(new AssignExpr("i", new ValueExpr(new IntVal(0))),
+                                                new SeqExpr(sum, new VarExpr("sum")))))));
+        long expected = 0;
+        for (int k = 0; k < n; k++) {
+            expected += k % 7;
+        }
+        assertEquals(Numbers.of(expected), Scope.resolve(prog).evaluate(env));
+        assertEquals(ArrayVal.INTS, ((ArrayVal) env.resolveVar("a")).getKind());
+    }
+
+    @Test
+    // var consts = {}; consts.PI = 3.14; consts.e = 2.718; consts.PI;
+    public void testObjects() {
+        Environment env = new Environment();
+        Expression prog = new SeqExpr(new VarDeclExpr("consts", new ObjectExpr(names(), exprs())),
+                new SeqExpr(new PropertyAssignExpr(new VarExpr("consts"), "PI", new ValueExpr(new DoubleVal(3.14))),
+                        new SeqExpr(new PropertyAssignExpr(new VarExpr("consts"), "e",
+                                new ValueExpr(new DoubleVal(2.718))),
+                                new PropertyExpr(new VarExpr("consts"), "PI"))));
+        assertEquals(new DoubleVal(3.14), Scope.resolve(prog).evaluate(env));
+        ObjVal consts = (ObjVal) env.resolveVar("consts");
+        assertEquals(new DoubleVal(2.718), consts.get("e"));
+        assertEquals(new NullVal(), consts.get("tau"));
+        assertEquals("{PI: 3.14, e: 2.718}", consts.toString());
+    }
+
+    @Test
+    // function(p) { p.x + p.y; } applied to objects of two shapes
+    public void testPropertyShapes() {
+        Environment env = new Environment();
+        Expression sumXY = new BinOpExpr(Op.ADD, new PropertyExpr(new VarExpr("p"), "x"),
+                new PropertyExpr(new VarExpr("p"), "y"));
+        Expression xy = new ObjectExpr(names("x", "y"),
+                exprs(new ValueExpr(new IntVal(1)), new ValueExpr(new IntVal(2))));
+        ObjVal a = (ObjVal) xy.evaluate(env);
+        ObjVal b = (ObjVal) xy.evaluate(env);
+        assertSame(a.getShape(), b.getShape());
+        ObjVal c = (ObjVal) new ObjectExpr(names("y", "x"),
+                exprs(new ValueExpr(new IntVal(10)), new ValueExpr(new IntVal(20)))).evaluate(env);
+        assertNotSame(a.getShape(), c.getShape());
+        env.createVar("p", a);
+        assertEquals(new IntVal(3), sumXY.evaluate(env));
+        env.updateVar("p", c);
+        assertEquals(new IntVal(30), sumXY.evaluate(env));
+        env.updateVar("p", b);
+        new PropertyAssignExpr(new VarExpr("p"), "y", new ValueExpr(new IntVal(5))).evaluate(env);
+        assertEquals(new IntVal(6), sumXY.evaluate(env));
+        assertEquals(new IntVal(2), a.get("y"));
+    }
+
+    @Test
+    public void testLargeShapes() {
+        ObjVal big = new ObjVal();
+        for (int i = 0; i < 10000; i++) {
+            big.set("p" + i, new IntVal(i));
+        }
+        Shape shape = big.getShape();
+        assertEquals(10000, shape.size());
+        // A shape that branches off the chain keeps only its own properties.
+        ObjVal branch = new ObjVal();
+        for (int i = 0; i < 100; i++) {
+            branch.set("p" + i, new IntVal(-i));
+        }
+        branch.set("q", new IntVal(0));
+        assertEquals(101, branch.getShape().size());
+        assertEquals(-1, branch.getShape().indexOf(Symbols.intern("p100")));
+        assertEquals(-1, shape.indexOf(Symbols.intern("q")));
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(i, shape.indexOf(Symbols.intern("p" + i)));
+            assertEquals("p" + i, Symbols.name(shape.nameAt(i)));
+            assertEquals(new IntVal(i), big.get("p" + i));
+        }
+        assertEquals(new IntVal(-99), branch.get("p99"));
+        assertEquals(new IntVal(0), branch.get("q"));
+    }
+
+    @Test
+    public void testVectorVersions() {
+        VectorVal v = VectorVal.EMPTY;
+        List<VectorVal> versions = new ArrayList<VectorVal>();
+        for (int i = 0; i < 100000; i++) {
+            versions.add(v);
+            v = v.append(new IntVal(i));
+        }
+        assertEquals(100000, v.length());
+        assertEquals(new IntVal(99999), v.get(99999));
+        assertEquals(NullVal.NULL, v.get(100000));
+        for (int n : new int[] {1, 32, 33, 1056, 1057, 32800, 99999}) {
+            assertEquals(n, versions.get(n).length());
+            assertEquals(new IntVal(n - 1), versions.get(n).get(n - 1));
+        }
+        VectorVal w = v.update(5, new IntVal(-5)).update(99990, new IntVal(-1));
+        assertEquals(new IntVal(-5), w.get(5));
+        assertEquals(new IntVal(-1), w.get(99990));
+        assertEquals(new IntVal(5), v.get(5));
+        assertEquals(new IntVal(99990), v.get(99990));
+        assertEquals(new IntVal(5), versions.get(40000).get(5));
+    }
+
+    @Test
+    public void testMapVersions() {
+        MapVal m = MapVal.EMPTY;
+        for (int i = 0; i < 10000; i++) {
+            m = m.put(new IntVal(i), new IntVal(i * i));
+        }
+        MapVal removed = m;
+        for (int i = 0; i < 10000; i += 2) {
+            removed = removed.remove(new IntVal(i));
+        }
+        assertEquals(10000, m.size());
+        assertEquals(5000, removed.size());
+        assertEquals(new IntVal(16), m.get(new IntVal(4)));
+        assertFalse(removed.has(new IntVal(4)));
+        assertEquals(new IntVal(25), removed.get(new IntVal(5)));
+        assertEquals(NullVal.NULL, m.get(new IntVal(10000)));
+        assertSame(m, m.remove(new IntVal(-1)));
+    }
+
+    @Test
+    public void testMapCollisions() {
+        Value a = new SameHash("a");
+        Value b = new SameHash("b");
+        Value c = new SameHash("c");
+        MapVal m = MapVal.EMPTY.put(a, new IntVal(1)).put(b, new IntVal(2)).put(new IntVal(7), new IntVal(7));
+        MapVal m2 = m.put(c, new IntVal(3)).put(a, new IntVal(10));
+        assertEquals(3, m.size());
+        assertEquals(4, m2.size());
+        assertEquals(new IntVal(1), m.get(a));
+        assertEquals(new IntVal(10), m2.get(a));
+        assertFalse(m.has(c));
+        MapVal m3 = m2.remove(b).remove(a);
+        assertEquals(2, m3.size());
+        assertEquals(new IntVal(3), m3.get(c));
+        assertEquals(new IntVal(7), m3.get(new IntVal(7)));
+        assertEquals(new IntVal(2), m2.get(b));
+        assertEquals(MapVal.EMPTY.put(new IntVal(7), new IntVal(7)).put(c, new IntVal(3)), m3);
+        assertNotEquals(m2.put(b, new IntVal(-2)), m2);
+        assertEquals(m2.put(b, new IntVal(-2)).put(b, new IntVal(2)), m2);
+        assertEquals("hashMap()", MapVal.EMPTY.toString());
+        assertEquals("hashMap(7, 7)", m3.remove(c).toString());
+    }
+
+    @Test
+    public void testCollectionBuiltins() {
+        Environment env = new Environment();
+        Builtins.install(env);
+        // var v = vector(); var i = 0;
+        // while (i < 100) { v = append(v, i); i = i + 1; }
+        // var m = hashMap("first", lookup(v, 0));
+        // m = update(m, "last", lookup(update(v, 99, 1000), 99));
+        // var sum = 0; each(v, function(x) { sum = sum + x; });
+        // each(m, function(k, x) { sum = sum + x; }); sum;
+        Expression prog = new SeqExpr(new VarDeclExpr("v", new FunctionAppExpr(new VarExpr("vector"), exprs())),
+                new SeqExpr(new VarDeclExpr("i", new ValueExpr(new IntVal(0))),
+                new SeqExpr(new WhileExpr(new BinOpExpr(Op.LT, new VarExpr("i"), new ValueExpr(new IntVal(100))),
+                        new SeqExpr(new AssignExpr("v", new FunctionAppExpr(new VarExpr("append"),
+                                        exprs(new VarExpr("v"), new VarExpr("i")))),
+                                new AssignExpr("i", new BinOpExpr(Op.ADD, new VarExpr("i"), new ValueExpr(new IntVal(1)))))),
+                new SeqExpr(new VarDeclExpr("m", new FunctionAppExpr(new VarExpr("hashMap"),
+                        exprs(new ValueExpr(StrVal.literal("first")),
+                                new FunctionAppExpr(new VarExpr("lookup"), exprs(new VarExpr("v"), new ValueExpr(new IntVal(0))))))),
+                new SeqExpr(new AssignExpr("m", new FunctionAppExpr(new VarExpr("update"),
+                        exprs(new VarExpr("m"), new ValueExpr(StrVal.literal("last")),
+                                new FunctionAppExpr(new VarExpr("lookup"), exprs(
+                                        new FunctionAppExpr(new VarExpr("update"), exprs(new VarExpr("v"),
+                                                new ValueExpr(new IntVal(99)), new ValueExpr(new IntVal(1000)))),
+                                        new ValueExpr(new IntVal(99))))))),
+                new SeqExpr(new VarDeclExpr("sum", new ValueExpr(new IntVal(0))),
+                new SeqExpr(new FunctionAppExpr(new VarExpr("each"), exprs(new VarExpr("v"),
+                        new FunctionDeclExpr(names("x"), new AssignExpr("sum",
+                                new BinOpExpr(Op.ADD, new VarExpr("sum"), new VarExpr("x")))))),
+                new SeqExpr(new FunctionAppExpr(new VarExpr("each"), exprs(new VarExpr("m"),
+                        new FunctionDeclExpr(names("k", "x"), new AssignExpr("sum",
+                                new BinOpExpr(Op.ADD, new VarExpr("sum"), new VarExpr("x")))))),
+                        new VarExpr("sum")))))))));
+        // 0 + 1 + ... + 99, then 0 and 1000 from the map
+        assertEquals(new IntVal(5950), Scope.resolve(prog).evaluate(env));
+        assertEquals(new IntVal(100), new FunctionAppExpr(new VarExpr("size"), exprs(new VarExpr("v"))).evaluate(env));
+        assertEquals(new IntVal(99), new FunctionAppExpr(new VarExpr("lookup"),
+                exprs(new VarExpr("v"), new ValueExpr(new IntVal(99)))).evaluate(env));
+    }
+
+    @Test
+    public void testValueHashCodes() {
+        Value[][] equalPairs = {
+            {new IntVal(1000000), IntVal.of(1000000)},
+            {new BoolVal(true), BoolVal.TRUE},
+            {new NullVal(), NullVal.NULL},
+            {new LongVal(1L << 40), Numbers.of(1L << 40)},
+            {new BigIntVal(BigInteger.TEN.pow(30)), Numbers.of(BigInteger.TEN.pow(30))},
+            {new DoubleVal(0.5), new DoubleVal(0.5)},
+            {new StrVal("ab"), StrVal.concat(StrVal.literal("a"), StrVal.literal("b"))},
+            {VectorVal.EMPTY.append(IntVal.of(1)), VectorVal.EMPTY.append(new IntVal(1))},
+            {MapVal.EMPTY.put(IntVal.of(1), IntVal.of(2)).put(IntVal.of(3), IntVal.of(4)),
+                    MapVal.EMPTY.put(IntVal.of(3), IntVal.of(4)).put(IntVal.of(1), IntVal.of(2))},
+        };
+        for (Value[] pair : equalPairs) {
+            assertEquals(pair[0], pair[1]);
+            assertEquals(pair[0].hashCode(), pair[1].hashCode());
+        }
+    }
+
+    @Test
+    public void testDictOperations() {
+        DictVal dict = new DictVal();
+        for (int i = 0; i < 10000; i++) {
+            assertNull(dict.put(new IntVal(i), new IntVal(-i)));
+        }
+        assertEquals(new IntVal(-5), dict.put(new IntVal(5), new IntVal(5)));
+        for (int i = 0; i < 10000; i += 3) {
+            assertTrue(dict.delete(new IntVal(i)));
+        }
+        assertFalse(dict.delete(new IntVal(0)));
+        assertEquals(10000 - 3334, dict.size());
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(i % 3 != 0, dict.has(new IntVal(i)));
+        }
+        assertEquals(new IntVal(5), dict.get(IntVal.of(5)));
+        assertNull(dict.get(StrVal.literal("5")));
+
+        // Keys with one hash share a probe run, which deleting must keep
+        // intact.
+        DictVal same = new DictVal();
+        for (int i = 0; i < 20; i++) {
+            same.put(new SameHash("k" + i), new IntVal(i));
+        }
+        same.delete(new SameHash("k3"));
+        same.delete(new SameHash("k0"));
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i == 0 || i == 3 ? null : new IntVal(i), same.get(new SameHash("k" + i)));
+        }
+    }
+
+    @Test
+    public void testDictBuiltins() {
+        Environment env = new Environment();
+        Builtins.install(env);
+        // var d = dict("a", 1); put(d, 2.5, "b"); put(d, "a", 3);
+        // delete(d, 2.5); get(d, "a") + size(d);
+        Expression prog = new SeqExpr(new VarDeclExpr("d", new FunctionAppExpr(new VarExpr("dict"),
+                        exprs(new ValueExpr(StrVal.literal("a")), new ValueExpr(new IntVal(1))))),
+                new SeqExpr(new FunctionAppExpr(new VarExpr("put"), exprs(new VarExpr("d"),
+                        new ValueExpr(new DoubleVal(2.5)), new ValueExpr(StrVal.literal("b")))),
+                new SeqExpr(new FunctionAppExpr(new VarExpr("put"), exprs(new VarExpr("d"),
+                        new ValueExpr(new StrVal("a")), new ValueExpr(new IntVal(3)))),
+                new SeqExpr(new FunctionAppExpr(new VarExpr("delete"), exprs(new VarExpr("d"),
+                        new ValueExpr(new DoubleVal(2.5)))),
+                        new BinOpExpr(Op.ADD,
+                                new FunctionAppExpr(new VarExpr("get"), exprs(new VarExpr("d"), new ValueExpr(StrVal.literal("a")))),
+                                new FunctionAppExpr(new VarExpr("size"), exprs(new VarExpr("d"))))))));
+        assertEquals(new IntVal(4), Scope.resolve(prog).evaluate(env));
+        assertEquals(BoolVal.FALSE, new FunctionAppExpr(new VarExpr("has"),
+                exprs(new VarExpr("d"), new ValueExpr(new DoubleVal(2.5)))).evaluate(env));
+    }
+
+    @Test
+    public void testSelfSpecialization() {
+        Environment env = new Environment();
+        env.createVar("x", new IntVal(1));
+        BinOpExpr add = new BinOpExpr(Op.ADD, new VarExpr("x"), new ValueExpr(new IntVal(2)));
+        BinOpExpr lt = new BinOpExpr(Op.LT, new VarExpr("x"), new ValueExpr(new IntVal(2)));
+        assertTrue(add.getNode() instanceof BinOpNodes.Uninitialized);
+        assertEquals(new IntVal(3), add.evaluate(env));
+        assertEquals(BoolVal.TRUE, lt.evaluate(env));
+        assertTrue(add.getNode() instanceof BinOpNodes.IntAdd);
+        assertTrue(lt.getNode() instanceof BinOpNodes.IntLess);
+
+        // An overflow is promoted without giving up the int node.
+        env.updateVar("x", new IntVal(Integer.MAX_VALUE));
+        assertEquals(new LongVal(Integer.MAX_VALUE + 2L), add.evaluate(env));
+        assertTrue(add.getNode() instanceof BinOpNodes.IntAdd);
+
+        env.updateVar("x", new DoubleVal(0.5));
+        assertEquals(new DoubleVal(2.5), add.evaluate(env));
+        assertEquals(BoolVal.TRUE, lt.evaluate(env));
+        assertTrue(add.getNode() instanceof BinOpNodes.Doubles);
+        assertTrue(lt.getNode() instanceof BinOpNodes.Doubles);
+
+        env.updateVar("x", new StrVal("a"));
+        assertEquals(new StrVal("a2"), add.evaluate(env));
+        assertTrue(add.getNode() instanceof BinOpNodes.Generic);
+
+        // A generic node still handles every type.
+        env.updateVar("x", new IntVal(4));
+        assertEquals(new IntVal(6), add.evaluate(env));
+        assertTrue(add.getNode() instanceof BinOpNodes.Generic);
+    }
+
+    @Test
+    public void testConstantFolding() {
+        // 3 * 4 + 2 and 7 - 4 - 3
+        Expression e = Scope.resolve(new BinOpExpr(Op.ADD,
+                new BinOpExpr(Op.MULTIPLY, new ValueExpr(new IntVal(3)), new ValueExpr(new IntVal(4))),
+                new ValueExpr(new IntVal(2))));
+        assertTrue(e instanceof ValueExpr);
+        assertEquals(new IntVal(14), e.evaluate(new Environment()));
+        e = Scope.resolve(new BinOpExpr(Op.SUBTRACT,
+                new BinOpExpr(Op.SUBTRACT, new ValueExpr(new IntVal(7)), new ValueExpr(new IntVal(4))),
+                new ValueExpr(new IntVal(3))));
+        assertTrue(e instanceof ValueExpr);
+        assertEquals(new IntVal(0), e.evaluate(new Environment()));
+
+        // if (3 <= 4) { 1; x } else { 2 } leaves only x.
+        e = Scope.resolve(new IfExpr(
+                new BinOpExpr(Op.LE, new ValueExpr(new IntVal(3)), new ValueExpr(new IntVal(4))),
+                new SeqExpr(new ValueExpr(new IntVal(1)), new VarExpr("x")),
+                new ValueExpr(new IntVal(2))));
+        assertTrue(e instanceof ResolvedVarExpr);
+
+        // Division by a constant zero still fails when it runs.
+        e = Scope.resolve(new BinOpExpr(Op.DIVIDE, new ValueExpr(new IntVal(1)), new ValueExpr(new IntVal(0))));
+        assertTrue(e instanceof BinOpExpr);
+        try {
+            e.evaluate(new Environment());
+            fail("Expected division by zero");
+        } catch (ArithmeticException expected) {
+        }
+    }
+
+    @Test
+    public void testFoldedIdentities() {
+        Environment env = new Environment();
+        env.createVar("x", new IntVal(5));
+        Expression plusZero = Scope.resolve(new BinOpExpr(Op.ADD, new VarExpr("x"), new ValueExpr(new IntVal(0))));
+        Expression oneTimes = Scope.resolve(new BinOpExpr(Op.MULTIPLY, new ValueExpr(new IntVal(1)), new VarExpr("x")));
+        Expression zeroMinus = Scope.resolve(new BinOpExpr(Op.SUBTRACT, new ValueExpr(new IntVal(0)), new VarExpr("x")));
+        assertTrue(plusZero instanceof IdentityExpr);
+        assertTrue(oneTimes instanceof IdentityExpr);
+        assertTrue(zeroMinus instanceof BinOpExpr);
+        assertEquals(new IntVal(5), plusZero.evaluate(env));
+        assertEquals(5, oneTimes.evaluateInt(env));
+        assertEquals(new IntVal(-5), zeroMinus.evaluate(env));
+
+        // Only ints are left unchanged.
+        env.updateVar("x", new StrVal("a"));
+        assertEquals(new StrVal("a0"), plusZero.evaluate(env));
+        env.updateVar("x", new DoubleVal(-0.0));
+        assertEquals(new DoubleVal(0.0), plusZero.evaluate(env));
+        assertEquals(new DoubleVal(-0.0), oneTimes.evaluate(env));
+        env.updateVar("x", new LongVal(1L << 40));
+        assertEquals(new LongVal(1L << 40), oneTimes.evaluate(env));
+    }
+
+    @Test
+    public void testLongSequences() {
+        // var i = 0; i = i + 1; ... 200000 times ...; i
+        int n = 200000;
+        Expression right = new VarExpr("i");
+        for (int k = 0; k < n; k++) {
+            right = new SeqExpr(new AssignExpr("i", new BinOpExpr(Op.ADD, new VarExpr("i"), new ValueExpr(new IntVal(1)))), right);
+        }
+        right = new SeqExpr(new VarDeclExpr("i", new ValueExpr(new IntVal(0))), right);
+        assertEquals(new IntVal(n), right.evaluate(new Environment()));
+        Expression resolved = Scope.resolve(right);
+        assertTrue(resolved instanceof BlockExpr);
+        assertEquals(n + 2, ((BlockExpr) resolved).getBody().length);
+        assertEquals(new IntVal(n), resolved.evaluate(new Environment()));
+
+        // The same statements nested to the left
+        Expression left = new VarDeclExpr("i", new ValueExpr(new IntVal(0)));
+        for (int k = 0; k < n; k++) {
+            left = new SeqExpr(left, new AssignExpr("i", new BinOpExpr(Op.ADD, new VarExpr("i"), new ValueExpr(new IntVal(1)))));
+        }
+        assertEquals(new IntVal(n), Scope.resolve(new SeqExpr(left, new VarExpr("i"))).evaluate(new Environment()));
+    }
+
+    @Test
+    public void testDeadStatements() {
+        // y == z; 3 <= 4; function() {}; 1 / 0; x; x
+        Expression prog = new SeqExpr(new BinOpExpr(Op.EQ, new VarExpr("y"), new VarExpr("z")),
+                new SeqExpr(new BinOpExpr(Op.LE, new ValueExpr(new IntVal(3)), new ValueExpr(new IntVal(4))),
+                new SeqExpr(new FunctionDeclExpr(names(), new ValueExpr(new IntVal(0))),
+                new SeqExpr(new BinOpExpr(Op.DIVIDE, new ValueExpr(new IntVal(1)), new ValueExpr(new IntVal(0))),
+                new SeqExpr(new VarExpr("x"), new VarExpr("x"))))));
+        Expression resolved = Scope.resolve(prog);
+        assertTrue(resolved instanceof BlockExpr);
+        Expression[] body = ((BlockExpr) resolved).getBody();
+        // Only the folded constant and the function are dropped.
+        assertEquals(4, body.length);
+        assertTrue(body[0] instanceof BinOpExpr);
+        // Comparing two nulls fails, as it does without resolving.
+        assertEquals("ClassCastException", outcome(prog));
+        assertEquals("ClassCastException", outcome(resolved));
+    }
+
+    @Test
+    public void testDeadStatementsThatFail() {
+        Expression five = new ValueExpr(new IntVal(5));
+        Expression noArgs = new FunctionDeclExpr(names(), new ValueExpr(new IntVal(0)));
+        Expression[] progs = {
+            // nope < 3; 5
+            new SeqExpr(new BinOpExpr(Op.LT, new VarExpr("nope"), new ValueExpr(new IntVal(3))), five),
+            // var f = function() { 0 }; f < f; 5
+            new SeqExpr(new VarDeclExpr("f", noArgs),
+                    new SeqExpr(new BinOpExpr(Op.LT, new VarExpr("f"), new VarExpr("f")), five)),
+            // nope; 3 < 4; 5
+            new SeqExpr(new VarExpr("nope"), new SeqExpr(new BinOpExpr(Op.LT,
+                    new ValueExpr(new IntVal(3)), new ValueExpr(new IntVal(4))), five)),
+            // (function() { var a = 1; a; a < 2; 5 })()
+            new FunctionAppExpr(new FunctionDeclExpr(names(),
+                    new SeqExpr(new VarDeclExpr("a", new ValueExpr(new IntVal(1))),
+                    new SeqExpr(new VarExpr("a"),
+                    new SeqExpr(new BinOpExpr(Op.LT, new VarExpr("a"), new ValueExpr(new IntVal(2))), five)))),
+                    exprs()),
+            // (function(p) { var a = function() { 0 }; p; a < 2; 5 })()
+            new FunctionAppExpr(new FunctionDeclExpr(names("p"),
+                    new SeqExpr(new VarDeclExpr("a", noArgs),
+                    new SeqExpr(new VarExpr("p"),
+                    new SeqExpr(new BinOpExpr(Op.LT, new VarExpr("a"), new ValueExpr(new IntVal(2))), five)))),
+                    exprs()),
+        };
+        String[] expected = {"ClassCastException", "ClassCastException", "5", "5", "ClassCastException"};
+        for (int i = 0; i < progs.length; i++) {
+            assertEquals(expected[i], outcome(progs[i]));
+            assertEquals(expected[i], outcome(Scope.resolve(progs[i])));
+        }
+    }
+
+    private static String outcome(Expression prog) {
+        try {
+            return prog.evaluate(new Environment()).toString();
+        } catch (RuntimeException e) {
+            return e.getClass().getSimpleName();
+        }
+    }
+
+    @Test
+    public void testTailCalls() {
+        Environment env = new Environment();
+        Builtins.install(env);
+        // var loop = function(n, acc) { if (n == 0) acc else loop(n - 1, acc + n) };
+        Expression loop = new FunctionDeclExpr(names("n", "acc"),
+                new IfExpr(new BinOpExpr(Op.EQ, new VarExpr("n"), new ValueExpr(new IntVal(0))),
+                        new VarExpr("acc"),
+                        new FunctionAppExpr(new VarExpr("loop"), exprs(
+                                new BinOpExpr(Op.SUBTRACT, new VarExpr("n"), new ValueExpr(new IntVal(1))),
+                                new BinOpExpr(Op.ADD, new VarExpr("acc"), new VarExpr("n"))))));
+        // var isEven = function(n) { if (n == 0) true else { 0; isOdd(n - 1) } };
+        // var isOdd = function(n) { if (n == 0) false else isEven(n - 1) };
+        Expression isEven = new FunctionDeclExpr(names("n"),
+                new IfExpr(new BinOpExpr(Op.EQ, new VarExpr("n"), new ValueExpr(new IntVal(0))),
+                        new ValueExpr(BoolVal.TRUE),
+                        new SeqExpr(new VarExpr("n"), new FunctionAppExpr(new VarExpr("isOdd"), exprs(
+                                new BinOpExpr(Op.SUBTRACT, new VarExpr("n"), new ValueExpr(new IntVal(1))))))));
+        Expression isOdd = new FunctionDeclExpr(names("n"),
+                new IfExpr(new BinOpExpr(Op.EQ, new VarExpr("n"), new ValueExpr(new IntVal(0))),
+                        new ValueExpr(BoolVal.FALSE),
+                        new FunctionAppExpr(new VarExpr("isEven"), exprs(
+                                new BinOpExpr(Op.SUBTRACT, new VarExpr("n"), new ValueExpr(new IntVal(1)))))));
+        // A builtin called in tail position
+        Expression sizeOf = new FunctionDeclExpr(names("v"),
+                new FunctionAppExpr(new VarExpr("size"), exprs(new VarExpr("v"))));
+        Scope.resolve(new SeqExpr(new VarDeclExpr("loop", loop),
+                new SeqExpr(new VarDeclExpr("isEven", isEven),
+                new SeqExpr(new VarDeclExpr("isOdd", isOdd),
+                        new VarDeclExpr("sizeOf", sizeOf))))).evaluate(env);
+
+        int n = 1000000;
+        assertEquals(new LongVal(n * (n + 1L) / 2), new FunctionAppExpr(new VarExpr("loop"),
+                exprs(new ValueExpr(new IntVal(n)), new ValueExpr(new IntVal(0)))).evaluate(env));
+        assertEquals(BoolVal.TRUE, new FunctionAppExpr(new VarExpr("isEven"),
+                exprs(new ValueExpr(new IntVal(n)))).evaluate(env));
+        assertEquals(BoolVal.FALSE, new FunctionAppExpr(new VarExpr("isOdd"),
+                exprs(new ValueExpr(new IntVal(n)))).evaluate(env));
+        assertEquals(new IntVal(2), new FunctionAppExpr(new VarExpr("sizeOf"),
+                exprs(new FunctionAppExpr(new VarExpr("vector"),
+                        exprs(new ValueExpr(new IntVal(1)), new ValueExpr(new IntVal(2)))))).evaluate(env));
+    }
+
+    @Test
+    public void testStackEvaluatorMatchesEvaluate() {
+        Expression i = new VarExpr("i");
+        // var a = []; var i = 0; while (i < 10) { a[i] = i * i; i = i + 1; }
+        // var o = {n: a.length}; o.last = a[9]; print(o.last); [o.n, o.last, "s" + i];
+        Expression arrays = new SeqExpr(new VarDeclExpr("a", new ArrayExpr(exprs())),
+                new SeqExpr(new VarDeclExpr("i", new ValueExpr(new IntVal(0))),
+                new SeqExpr(new WhileExpr(new BinOpExpr(Op.LT, i, new ValueExpr(new IntVal(10))),
+                        new SeqExpr(new IndexAssignExpr(new VarExpr("a"), i, new BinOpExpr(Op.MULTIPLY, i, i)),
+                                new AssignExpr("i", new BinOpExpr(Op.ADD, i, new ValueExpr(new IntVal(1)))))),
+                new SeqExpr(new VarDeclExpr("o", new ObjectExpr(names("n"), exprs(new LengthExpr(new VarExpr("a"))))),
+                new SeqExpr(new PropertyAssignExpr(new VarExpr("o"), "last",
+                        new IndexExpr(new VarExpr("a"), new ValueExpr(new IntVal(9)))),
+                new SeqExpr(new PrintExpr(new PropertyExpr(new VarExpr("o"), "last")),
+                        new ArrayExpr(exprs(new PropertyExpr(new VarExpr("o"), "n"),
+                                new PropertyExpr(new VarExpr("o"), "last"),
+                                new BinOpExpr(Op.ADD, new ValueExpr(new StrVal("s")), i)))))))));
+        Expression[] progs = {
+            arrays,
+            makeCounterProgram(5),
+            new SeqExpr(new VarDeclExpr("sum", sumFunction()), callSum(new ValueExpr(new IntVal(100)))),
+            new SeqExpr(new VarDeclExpr("fact", new FunctionDeclExpr(names("n"),
+                    new IfExpr(new BinOpExpr(Op.LE, new VarExpr("n"), new ValueExpr(new IntVal(1))),
+                            new ValueExpr(new IntVal(1)),
+                            new BinOpExpr(Op.MULTIPLY, new VarExpr("n"), new FunctionAppExpr(new VarExpr("fact"),
+                                    exprs(new BinOpExpr(Op.SUBTRACT, new VarExpr("n"),
+                                            new ValueExpr(new IntVal(1))))))))),
+                    callFact(25)),
+        };
+        for (Expression prog : progs) {
+            // Both unresolved and resolved, whose function bodies have tail calls.
+            for (Expression p : new Expression[] {prog, Scope.resolve(prog)}) {
+                Value expected = p.evaluate(new Environment());
+                assertEquals(expected.toString(), StackEvaluator.evaluate(p, new Environment()).toString());
+            }
+        }
+    }
+
+    @Test
+    // var sum = function(n) { if (n == 0) 0; else n + sum(n - 1); }; sum(1000000);
+    public void testStackEvaluatorDeepRecursion() {
+        Environment env = new Environment();
+        StackEvaluator.evaluate(Scope.resolve(new VarDeclExpr("sum", sumFunction())), env);
+        int n = 1000000;
+        assertEquals(new LongVal(n * (n + 1L) / 2),
+                StackEvaluator.evaluate(callSum(new ValueExpr(new IntVal(n))), env));
+
+        // var down = function(n) { if (n == 0) missing(); else n + down(n - 1); };
+        // A failure deep down releases every frame on the way out.
+        StackEvaluator.evaluate(Scope.resolve(new VarDeclExpr("down", new FunctionDeclExpr(names("n"),
+                new IfExpr(new BinOpExpr(Op.EQ, new VarExpr("n"), new ValueExpr(new IntVal(0))),
+                        new FunctionAppExpr(new VarExpr("missing"), exprs()),
+                        new BinOpExpr(Op.ADD, new VarExpr("n"), new FunctionAppExpr(new VarExpr("down"),
+                                exprs(new BinOpExpr(Op.SUBTRACT, new VarExpr("n"),
+                                        new ValueExpr(new IntVal(1)))))))))), env);
+        try {
+            StackEvaluator.evaluate(new FunctionAppExpr(new VarExpr("down"),
+                    exprs(new ValueExpr(new IntVal(1000)))), env);
+            fail("Expected missing() to fail");
+        } catch (RuntimeException e) {
+            // expected
+        }
+        assertEquals(new IntVal(5050), StackEvaluator.evaluate(callSum(new ValueExpr(new IntVal(100))), env));
+    }
+
+    private static Expression callFact(int n) {
+        return new FunctionAppExpr(new VarExpr("fact"), exprs(new ValueExpr(new IntVal(n))));
+    }
+
+    private static List<String> names(String... names) {
+        List<String> list = new ArrayList<String>();
+        for (String name : names) {
+            list.add(name);
+        }
+        return list;
+    }
+
+    private static List<Expression> exprs(Expression... exprs) {
+        List<Expression> list = new ArrayList<Expression>();
+        for (Expression e : exprs) {
+            list.add(e);
+        }
+        return list;
+    }
+
+    private static FunctionDeclExpr sumFunction() {
+        List<String> params = new ArrayList<String>();
+        params.add("n");
+        return new FunctionDeclExpr(params,
+                new IfExpr(new BinOpExpr(Op.EQ, new VarExpr("n"), new ValueExpr(new IntVal(0))),
+                        new ValueExpr(new IntVal(0)),
+                        new BinOpExpr(Op.ADD, new VarExpr("n"),
+                                callSum(new BinOpExpr(Op.SUBTRACT,
+                                        new VarExpr("n"),
+                                        new ValueExpr(new IntVal(1)))))));
+    }
+
+    private static Expression callSum(Expression arg) {
+        List<Expression> args = new ArrayList<Expression>();
+        args.add(arg);
+        return new FunctionAppExpr(new VarExpr("sum"), args);
+    }
+
+    /**
+     * Builds the makeCounter program from closure.fwjs, calling the
+     * counter the given number of times.
+     */
+    private static Expression makeCounterProgram(int calls) {
+        FunctionDeclExpr counter = new FunctionDeclExpr(new ArrayList<String>(),
+                new AssignExpr("i", new BinOpExpr(Op.ADD,
+                        new VarExpr("i"),
+                        new ValueExpr(new IntVal(1)))));
+        FunctionDeclExpr makeCounter = new FunctionDeclExpr(new ArrayList<String>(),
+                new SeqExpr(new VarDeclExpr("i", new ValueExpr(new IntVal(0))), counter));
+        Expression prog = new SeqExpr(new VarDeclExpr("makeCounter", makeCounter),
+                new VarDeclExpr("ctr", new FunctionAppExpr(new VarExpr("makeCounter"),
+                        new ArrayList<Expression>())));
+        for (int i = 0; i < calls; i++) {
+            prog = new SeqExpr(prog, new FunctionAppExpr(new VarExpr("ctr"),
+                    new ArrayList<Expression>()));
+        }
+        return prog;
+    }
+
+    /**
+     * A key whose hash is the same as every other such key's.
+     */
+    private static class SameHash implements Value {
+        private String name;
+        SameHash(String name) { this.name = name; }
+        @Override
+        public boolean equals(Object that) {
+            return that instanceof SameHash && name.equals(((SameHash) that).name);
+        }
+        @Override
+        public int hashCode() {
+            return 42;
+        }
+    }
+}